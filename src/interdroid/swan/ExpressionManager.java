@@ -48,6 +48,14 @@ public class ExpressionManager {
 	 */
 	public static final String ACTION_UNREGISTER = "interdroid.swan.UNREGISTER";
 
+	/**
+	 * Action to be used to ask for the full window of a {@link ValueExpression}
+	 * that is registered for delta updates, when a delta can't be applied.
+	 * Preferably use the {@link #requestFullWindow(Context, String)}
+	 * convenience method.
+	 */
+	public static final String ACTION_REQUEST_FULL_WINDOW = "interdroid.swan.REQUEST_FULL_WINDOW";
+
 	/**
 	 * Action to filter on with a broadcast receiver that indicates the arrival
 	 * of new values for a {@link ValueExpression}. The
@@ -64,6 +72,39 @@ public class ExpressionManager {
 	 */
 	public static final String ACTION_NEW_TRISTATE = "interdroid.swan.NEW_TRISTATE";
 
+	/**
+	 * Action of a broadcast that holds several updates for the same
+	 * application, in {@link #EXTRA_UPDATES}. The evaluation engine only
+	 * batches updates for listeners registered through this class, which
+	 * unpacks the batches.
+	 */
+	public static final String ACTION_BATCH = "interdroid.swan.BATCH";
+
+	/**
+	 * The extra key that contains the ArrayList of update intents of an
+	 * {@link #ACTION_BATCH} broadcast, in the order they were produced.
+	 */
+	public static final String EXTRA_UPDATES = "updates";
+
+	/**
+	 * The extra key that marks an update intent as one that may be delivered
+	 * in an {@link #ACTION_BATCH} broadcast.
+	 */
+	public static final String EXTRA_BATCHABLE = "batchable";
+
+	/**
+	 * Action to filter on with a broadcast receiver that indicates that the
+	 * evaluation engine changed its degradation level. Under overload the
+	 * engine evaluates less often than the expressions ask for.
+	 */
+	public static final String ACTION_DEGRADATION = "interdroid.swan.DEGRADATION";
+
+	/**
+	 * The extra key that contains the degradation level of the evaluation
+	 * engine as an int, 0 means no degradation.
+	 */
+	public static final String EXTRA_DEGRADATION_LEVEL = "degradation_level";
+
 	/**
 	 * The extra key that contains the Parcelable[] with the new
 	 * {@link TimestampedValue}s. Cast the array items one by one, rather than
@@ -71,6 +112,41 @@ public class ExpressionManager {
 	 */
 	public static final String EXTRA_NEW_VALUES = "values";
 
+	/**
+	 * The extra key that can be added with value true to the intent for new
+	 * values of a {@link ValueExpression} to receive deltas. The
+	 * {@link #EXTRA_NEW_VALUES} of an update then only contain the values that
+	 * are new since the previous update, and {@link #EXTRA_RETAINED_VALUES}
+	 * tells how many values of the previous update remain in the window. Use
+	 * {@link #rebuildWindow(TimestampedValue[], Intent)} to get the full
+	 * window. A delta only applies to the update with the previous
+	 * {@link #EXTRA_UPDATE_SEQUENCE}, when an update is missed, use
+	 * {@link #requestFullWindow(Context, String)}.
+	 */
+	public static final String EXTRA_DELTA_VALUES = "delta_values";
+
+	/**
+	 * The extra key that contains, for delta updates, the number of values of
+	 * the previous window that are retained, as an int. The retained values
+	 * follow the new values in the window, older values are evicted. A value
+	 * of -1 means that {@link #EXTRA_NEW_VALUES} contains the full window.
+	 */
+	public static final String EXTRA_RETAINED_VALUES = "retained_values";
+
+	/**
+	 * The extra key that contains, for delta updates, the sequence number of
+	 * the update as a long. Every update of an expression has the sequence
+	 * number of the previous update plus one.
+	 */
+	public static final String EXTRA_UPDATE_SEQUENCE = "update_sequence";
+
+	/**
+	 * The extra key that contains, for delta updates, the epoch of the
+	 * {@link #EXTRA_UPDATE_SEQUENCE} as a long. The sequence starts over with
+	 * a new epoch, for instance when the evaluation engine restarted.
+	 */
+	public static final String EXTRA_UPDATE_EPOCH = "update_epoch";
+
 	/**
 	 * The extra key that contains the new {@link TriState}.
 	 */
@@ -115,6 +191,24 @@ public class ExpressionManager {
 	 */
 	private static Map<String, ExpressionListener> sListeners = new HashMap<String, ExpressionListener>();
 
+	/**
+	 * The last window of each expression registered for delta updates, mapped
+	 * by id of the expression
+	 */
+	private static Map<String, TimestampedValue[]> sWindows = new HashMap<String, TimestampedValue[]>();
+
+	/**
+	 * The sequence number of the last window in {@link #sWindows}, mapped by
+	 * id of the expression
+	 */
+	private static Map<String, Long> sSequences = new HashMap<String, Long>();
+
+	/**
+	 * The epoch of the sequence numbers in {@link #sSequences}, mapped by id
+	 * of the expression
+	 */
+	private static Map<String, Long> sEpochs = new HashMap<String, Long>();
+
 	/**
 	 * Boolean indicating whether we received a register to intercept broadcasts
 	 * and forward them to the respective listeners
@@ -128,6 +222,16 @@ public class ExpressionManager {
 
 		@Override
 		public void onReceive(Context context, Intent intent) {
+			if (intent.getAction().equals(ACTION_BATCH)) {
+				ArrayList<Intent> updates = intent
+						.getParcelableArrayListExtra(EXTRA_UPDATES);
+				if (updates != null) {
+					for (Intent update : updates) {
+						onReceive(context, update);
+					}
+				}
+				return;
+			}
 			String id = intent.getData().getFragment();
 			if (sListeners.containsKey(id)) {
 				if (intent.getAction().equals(ACTION_NEW_VALUES)) {
@@ -138,6 +242,13 @@ public class ExpressionManager {
 					TimestampedValue[] timestampedValues = new TimestampedValue[parcelables.length];
 					System.arraycopy(parcelables, 0, timestampedValues, 0,
 							parcelables.length);
+					if (intent.hasExtra(EXTRA_RETAINED_VALUES)) {
+						timestampedValues = rebuildWindow(context, id,
+								timestampedValues, intent);
+						if (timestampedValues == null) {
+							return;
+						}
+					}
 					sListeners.get(id).onNewValues(id, timestampedValues);
 				} else if (intent.getAction().equals(ACTION_NEW_TRISTATE)) {
 					sListeners
@@ -156,6 +267,101 @@ public class ExpressionManager {
 		}
 	};
 
+	/**
+	 * Rebuilds the full window of a {@link ValueExpression} that is
+	 * registered for delta updates (see {@link #EXTRA_DELTA_VALUES}).
+	 * 
+	 * @param previous
+	 *            the window after the previous update, or null for the first
+	 *            update
+	 * @param update
+	 *            the update intent
+	 * @return the window after this update, or null if the previous window is
+	 *         needed but missing
+	 */
+	public static TimestampedValue[] rebuildWindow(
+			TimestampedValue[] previous, Intent update) {
+		Parcelable[] parcelables = (Parcelable[]) update
+				.getParcelableArrayExtra(EXTRA_NEW_VALUES);
+		TimestampedValue[] values = new TimestampedValue[parcelables.length];
+		System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+		return rebuildWindow(previous, values,
+				update.getIntExtra(EXTRA_RETAINED_VALUES, -1));
+	}
+
+	/**
+	 * Applies a delta update to the window kept for a listener. Asks for the
+	 * full window if the previous update was missed.
+	 * 
+	 * @return the window after this update, or null if the update is dropped
+	 */
+	private static TimestampedValue[] rebuildWindow(Context context,
+			String id, TimestampedValue[] values, Intent update) {
+		int retained = update.getIntExtra(EXTRA_RETAINED_VALUES, -1);
+		long sequence = update.getLongExtra(EXTRA_UPDATE_SEQUENCE, -1);
+		long epoch = update.getLongExtra(EXTRA_UPDATE_EPOCH, -1);
+		Long previousEpoch = sEpochs.put(id, epoch);
+		if (previousEpoch != null && previousEpoch != epoch) {
+			// the sequence started over, the previous window is of no use
+			sWindows.remove(id);
+			sSequences.remove(id);
+		}
+		Long previous = sSequences.get(id);
+		TimestampedValue[] window;
+		if (retained < 0) {
+			if (previous != null && sequence >= 0 && sequence <= previous) {
+				Log.d(TAG, "got an outdated update, dropped it for: " + id);
+				return null;
+			}
+			window = values;
+		} else if (previous == null || sequence != previous + 1) {
+			window = null;
+		} else {
+			window = rebuildWindow(sWindows.get(id), values, retained);
+		}
+		if (window == null) {
+			Log.d(TAG, "missed an update, asking the full window for: " + id);
+			sWindows.remove(id);
+			sSequences.remove(id);
+			requestFullWindow(context, id);
+			return null;
+		}
+		sWindows.put(id, window);
+		sSequences.put(id, sequence);
+		return window;
+	}
+
+	private static TimestampedValue[] rebuildWindow(
+			TimestampedValue[] previous, TimestampedValue[] values,
+			int retained) {
+		if (retained < 0) {
+			return values;
+		}
+		if (previous == null || previous.length < retained) {
+			return null;
+		}
+		TimestampedValue[] window = new TimestampedValue[values.length
+				+ retained];
+		System.arraycopy(values, 0, window, 0, values.length);
+		System.arraycopy(previous, 0, window, values.length, retained);
+		return window;
+	}
+
+	/**
+	 * Asks for the full window of a {@link ValueExpression} that is registered
+	 * for delta updates (see {@link #EXTRA_DELTA_VALUES}), for instance when
+	 * an update was missed. The next update then contains the full window.
+	 * 
+	 * @param context
+	 * @param id
+	 *            the id with which the expression was registered.
+	 */
+	public static void requestFullWindow(Context context, String id) {
+		Intent intent = new Intent(ACTION_REQUEST_FULL_WINDOW);
+		intent.putExtra("expressionId", id);
+		context.sendBroadcast(intent);
+	}
+
 	/**
 	 * Returns all the information about the sensors known to SWAN. These are
 	 * sensors both from within the SWAN framework and 3rd party sensors.
@@ -278,8 +484,38 @@ public class ExpressionManager {
 	public static void registerValueExpression(Context context, String id,
 			ValueExpression expression, final ValueExpressionListener listener)
 			throws SwanException {
+		registerValueExpression(context, id, expression, listener, false);
+	}
+
+	/**
+	 * Registers a {@link ValueExpression} for evaluation, optionally with
+	 * delta updates. With delta updates the evaluation engine only sends the
+	 * values that are new since the previous update, which keeps updates
+	 * small for expressions with long histories. The listener still receives
+	 * the full window, which is rebuilt here.
+	 * 
+	 * @param context
+	 * @param id
+	 *            the user provided unique id of the expression, see
+	 *            {@link #registerValueExpression(Context, String, ValueExpression, ValueExpressionListener)}
+	 * @param expression
+	 *            the {@link ValueExpression} that should be evaluated
+	 * @param listener
+	 *            a {@link ValueExpressionListener} that receives the evaluation
+	 *            results. If this parameter is null, it is also possible to
+	 *            listen for the results using a {@link BroadcastReceiver},
+	 *            which receives the deltas, see {@link #EXTRA_DELTA_VALUES}.
+	 * @param deltaValues
+	 *            whether to receive delta updates
+	 * @throws SwanException
+	 *             if id is null or invalid
+	 */
+	public static void registerValueExpression(Context context, String id,
+			ValueExpression expression, final ValueExpressionListener listener,
+			boolean deltaValues) throws SwanException {
 		if (listener == null) {
-			registerExpression(context, id, expression, null);
+			registerExpression(context, id, expression, null, QosClass.NORMAL,
+					deltaValues, -1);
 		} else {
 			registerExpression(context, id, expression,
 					new ExpressionListener() {
@@ -295,7 +531,7 @@ public class ExpressionManager {
 								TriState newState) {
 							// ignore, will not happen
 						}
-					});
+					}, QosClass.NORMAL, deltaValues, -1);
 		}
 	}
 
@@ -322,6 +558,79 @@ public class ExpressionManager {
 	public static void registerExpression(Context context, String id,
 			Expression expression, ExpressionListener expressionListener)
 			throws SwanException {
+		registerExpression(context, id, expression, expressionListener,
+				QosClass.NORMAL);
+	}
+
+	/**
+	 * Registers an {@link Expression} for evaluation with a quality of
+	 * service class.
+	 * 
+	 * @param context
+	 * @param id
+	 *            the user provided unique id of the expression. Should not
+	 *            contain {@link Expression#SEPARATOR} or end with any of the
+	 *            {@link Expression#RESERVED_SUFFIXES}.
+	 * @param expression
+	 *            the {@link Expression} that should be evaluated
+	 * @param listener
+	 *            an {@link ExpressionListener} that receives the evaluation
+	 *            results, see
+	 *            {@link #registerExpression(Context, String, Expression, ExpressionListener)}
+	 * @param qosClass
+	 *            the {@link QosClass} of the expression, which determines how
+	 *            soon it is evaluated when the evaluation engine is busy
+	 * @throws SwanException
+	 *             if id is null or invalid
+	 */
+	public static void registerExpression(Context context, String id,
+			Expression expression, ExpressionListener expressionListener,
+			QosClass qosClass) throws SwanException {
+		registerExpression(context, id, expression, expressionListener,
+				qosClass, false, -1);
+	}
+
+	/**
+	 * Registers an {@link Expression} for evaluation with a quality of
+	 * service class and a minimum re-evaluation interval.
+	 * 
+	 * @param context
+	 * @param id
+	 *            the user provided unique id of the expression. Should not
+	 *            contain {@link Expression#SEPARATOR} or end with any of the
+	 *            {@link Expression#RESERVED_SUFFIXES}.
+	 * @param expression
+	 *            the {@link Expression} that should be evaluated
+	 * @param listener
+	 *            an {@link ExpressionListener} that receives the evaluation
+	 *            results, see
+	 *            {@link #registerExpression(Context, String, Expression, ExpressionListener)}
+	 * @param qosClass
+	 *            the {@link QosClass} of the expression, which determines how
+	 *            soon it is evaluated when the evaluation engine is busy
+	 * @param minReevaluationInterval
+	 *            the minimum time in ms between two evaluations of the
+	 *            expression caused by new sensor data, instead of the default
+	 *            of the evaluation engine
+	 * @throws SwanException
+	 *             if id is null or invalid
+	 */
+	public static void registerExpression(Context context, String id,
+			Expression expression, ExpressionListener expressionListener,
+			QosClass qosClass, long minReevaluationInterval)
+			throws SwanException {
+		if (minReevaluationInterval < 0) {
+			throw new SwanException("Invalid minimum re-evaluation interval: "
+					+ minReevaluationInterval);
+		}
+		registerExpression(context, id, expression, expressionListener,
+				qosClass, false, minReevaluationInterval);
+	}
+
+	private static void registerExpression(Context context, String id,
+			Expression expression, ExpressionListener expressionListener,
+			QosClass qosClass, boolean deltaValues, long minReevaluationInterval)
+			throws SwanException {
 		if (id == null) {
 			throw new SwanException("Invalid id. Null is not allowed as id");
 		}
@@ -354,8 +663,16 @@ public class ExpressionManager {
 		Intent newValues = new Intent(ACTION_NEW_VALUES);
 		newValues.setData(Uri.parse("swan://" + context.getPackageName() + "#"
 				+ id));
+		if (deltaValues) {
+			newValues.putExtra(EXTRA_DELTA_VALUES, true);
+		}
+		if (expressionListener != null) {
+			// we unpack batches for our own listeners
+			newTriState.putExtra(EXTRA_BATCHABLE, true);
+			newValues.putExtra(EXTRA_BATCHABLE, true);
+		}
 		registerExpression(context, id, expression, newTriState, newTriState,
-				newTriState, newValues);
+				newTriState, newValues, qosClass, minReevaluationInterval);
 	}
 
 	/**
@@ -391,7 +708,7 @@ public class ExpressionManager {
 			TriStateExpression expression, Intent onTrue, Intent onFalse,
 			Intent onUndefined) {
 		registerExpression(context, id, expression, onTrue, onFalse,
-				onUndefined, null);
+				onUndefined, null, QosClass.NORMAL, -1);
 	}
 
 	/**
@@ -413,12 +730,13 @@ public class ExpressionManager {
 	public static void registerValueExpression(Context context, String id,
 			TriStateExpression expression, Intent onNewValues) {
 		registerExpression(context, id, expression, null, null, null,
-				onNewValues);
+				onNewValues, QosClass.NORMAL, -1);
 	}
 
 	private static void registerExpression(Context context, String id,
 			Expression expression, Intent onTrue, Intent onFalse,
-			Intent onUndefined, Intent onNewValues) {
+			Intent onUndefined, Intent onNewValues, QosClass qosClass,
+			long minReevaluationInterval) {
 		Intent intent = new Intent(ACTION_REGISTER);
 		intent.putExtra("expressionId", id);
 		intent.putExtra("expression", expression.toParseString());
@@ -426,6 +744,10 @@ public class ExpressionManager {
 		intent.putExtra("onFalse", onFalse);
 		intent.putExtra("onUndefined", onUndefined);
 		intent.putExtra("onNewValues", onNewValues);
+		intent.putExtra("qosClass", qosClass.name());
+		if (minReevaluationInterval >= 0) {
+			intent.putExtra("minReevaluationInterval", minReevaluationInterval);
+		}
 		context.sendBroadcast(intent);
 	}
 
@@ -438,6 +760,9 @@ public class ExpressionManager {
 	 */
 	public static void unregisterExpression(Context context, String id) {
 		sListeners.remove(id);
+		sWindows.remove(id);
+		sSequences.remove(id);
+		sEpochs.remove(id);
 		if (sListeners.size() == 0 && sReceiverRegistered) {
 			sReceiverRegistered = false;
 			unregisterReceiver(context);
@@ -458,6 +783,7 @@ public class ExpressionManager {
 		IntentFilter intentFilter = new IntentFilter();
 		intentFilter.addAction(ACTION_NEW_TRISTATE);
 		intentFilter.addAction(ACTION_NEW_VALUES);
+		intentFilter.addAction(ACTION_BATCH);
 		intentFilter.addDataScheme("swan");
 		intentFilter.addDataAuthority(context.getPackageName(), null);
 		context.registerReceiver(sReceiver, intentFilter);
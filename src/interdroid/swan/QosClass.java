@@ -0,0 +1,55 @@
+package interdroid.swan;
+
+/**
+ * The quality of service class of a registered expression. Each class is
+ * evaluated from its own queue. Due expressions of a higher class are
+ * evaluated before those of a lower class, unless an expression of a lower
+ * class is later than the latency bound of its class, so that lower classes
+ * cannot starve.
+ */
+public enum QosClass {
+
+	/** Latency critical expressions, such as fall detection. */
+	REALTIME("realtime", 100),
+	/** The default class. */
+	NORMAL("normal", 1000),
+	/** Expressions for which a late result is acceptable. */
+	BACKGROUND("background", 10000);
+
+	private String mText;
+	private long mLatencyBound;
+
+	private QosClass(String text, long latencyBound) {
+		mText = text;
+		mLatencyBound = latencyBound;
+	}
+
+	public String toString() {
+		return mText;
+	}
+
+	/**
+	 * @return the time in ms an expression of this class may be late before
+	 *         it is evaluated ahead of expressions of higher classes.
+	 */
+	public long getLatencyBound() {
+		return mLatencyBound;
+	}
+
+	/**
+	 * @param name
+	 *            the name of a class, as returned by {@link #name()}
+	 * @return the class, or {@link #NORMAL} if the name is null or unknown
+	 */
+	public static QosClass parse(String name) {
+		if (name != null) {
+			for (QosClass qosClass : values()) {
+				if (qosClass.name().equals(name)) {
+					return qosClass;
+				}
+			}
+		}
+		return NORMAL;
+	}
+
+}
@@ -0,0 +1,269 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.ComparatorResult;
+import interdroid.swan.swansong.ComparisonExpression;
+import interdroid.swan.swansong.ConstantValueExpression;
+import interdroid.swan.swansong.Expression;
+import interdroid.swan.swansong.LogicExpression;
+import interdroid.swan.swansong.MathValueExpression;
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.SensorValueExpression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A registered expression compiled into flat arrays. Every node of the
+ * expression tree gets an integer id, its index in the arrays, with the root
+ * at index 0. Children, parents, the kind of node, the cached result and the
+ * sensor binding of a node are all looked up by index, so evaluation does not
+ * need to build id strings, look up results in maps or dispatch with
+ * instanceof chains.
+ *
+ * Node id strings (e.g. "myExpr.left.right") are kept for the registration of
+ * sensors and remote expressions and for mapping notifications back to nodes.
+ */
+public class CompiledExpression {
+
+	public static final byte LOGIC = 0;
+	public static final byte COMPARISON = 1;
+	public static final byte MATH = 2;
+	public static final byte CONSTANT = 3;
+	public static final byte SENSOR = 4;
+	/** A sensor value expression on the virtual time sensor. */
+	public static final byte TIME = 5;
+	/** A subtree that is evaluated on another device. */
+	public static final byte REMOTE = 6;
+
+	/** Marks the absence of a child or parent. */
+	public static final int NONE = -1;
+
+	final String mRootId;
+	final Expression[] mExpressions;
+	final String[] mIds;
+	final byte[] mKinds;
+	final int[] mParents;
+	final int[] mLefts;
+	final int[] mRights;
+
+	/**
+	 * The result of the last computation of each node. Remote results are
+	 * swapped in from the main thread.
+	 */
+	final AtomicReferenceArray<Result> mResults;
+	/**
+	 * Whether a leaf below the node got new data since it was computed. Only
+	 * used by the evaluation shard of the expression.
+	 */
+	final boolean[] mDirty;
+	/**
+	 * The number of node results reused and recomputed by the current
+	 * evaluation. Only used by the evaluation shard of the expression.
+	 */
+	int mResultHits;
+	int mResultMisses;
+	/**
+	 * The sensor binding of sensor nodes, null while the sensor sleeps. Set
+	 * from the main thread, the shard and the wake up thread.
+	 */
+	final AtomicReferenceArray<SensorBinding> mBindings;
+	/** The pending wake up of suspended sensor nodes, guarded by this. */
+	final ScheduledFuture<?>[] mWakeUps;
+	/**
+	 * The time at which a sensor node was suspended, 0 if suspending it
+	 * didn't release its sensor, guarded by this.
+	 */
+	final long[] mSuspendedAt;
+	/**
+	 * Set once the expression is stopped, after which sensor nodes are no
+	 * longer suspended or woken up, guarded by this.
+	 */
+	boolean mStopped;
+	/**
+	 * The result that is overwritten at each computation of a node, a
+	 * {@link ComparatorResult} for comparisons and a {@link MutableResult}
+	 * for other nodes. Constants and time have no slot.
+	 */
+	final Result[] mSlots;
+	/** Scratch space for computing how long a comparison remains valid. */
+	final EvaluationManager.DeferUntilResult mDeferUntil = new EvaluationManager.DeferUntilResult();
+	/** The running statistics of each node. */
+	final NodeStatistics[] mStatistics;
+	/** The planned evaluation order of logic nodes. */
+	final boolean[] mLeftFirst;
+	/** The number of evaluations until the order of a node is planned again. */
+	final int[] mUntilPlan;
+
+	private CompiledExpression(String rootId, List<Expression> expressions,
+			List<String> ids, List<Integer> parents) {
+		int size = expressions.size();
+		mRootId = rootId;
+		mExpressions = expressions.toArray(new Expression[size]);
+		mIds = ids.toArray(new String[size]);
+		mKinds = new byte[size];
+		mParents = new int[size];
+		mLefts = new int[size];
+		mRights = new int[size];
+		mResults = new AtomicReferenceArray<Result>(size);
+		mDirty = new boolean[size];
+		mBindings = new AtomicReferenceArray<SensorBinding>(size);
+		mWakeUps = new ScheduledFuture<?>[size];
+		mSuspendedAt = new long[size];
+		mSlots = new Result[size];
+		mStatistics = new NodeStatistics[size];
+		mLeftFirst = new boolean[size];
+		mUntilPlan = new int[size];
+		for (int i = 0; i < size; i++) {
+			mKinds[i] = kindOf(mExpressions[i]);
+			mParents[i] = parents.get(i);
+			mLefts[i] = NONE;
+			mRights[i] = NONE;
+			mDirty[i] = true;
+			mStatistics[i] = new NodeStatistics();
+			mSlots[i] = slotFor(mKinds[i], mExpressions[i]);
+			mLeftFirst[i] = true;
+		}
+		for (int i = 1; i < size; i++) {
+			// children are added left before right
+			if (mLefts[mParents[i]] == NONE) {
+				mLefts[mParents[i]] = i;
+			} else {
+				mRights[mParents[i]] = i;
+			}
+		}
+	}
+
+	/**
+	 * Compiles an expression whose locations have been resolved.
+	 *
+	 * @param id
+	 *            the id of the (root) expression
+	 * @param expression
+	 *            the expression
+	 * @return the compiled expression
+	 */
+	public static CompiledExpression compile(String id, Expression expression) {
+		List<Expression> expressions = new ArrayList<Expression>();
+		List<String> ids = new ArrayList<String>();
+		List<Integer> parents = new ArrayList<Integer>();
+		add(id, expression, NONE, expressions, ids, parents);
+		return new CompiledExpression(id, expressions, ids, parents);
+	}
+
+	private static void add(String id, Expression expression, int parent,
+			List<Expression> expressions, List<String> ids,
+			List<Integer> parents) {
+		int node = expressions.size();
+		expressions.add(expression);
+		ids.add(id);
+		parents.add(parent);
+		if (isRemote(expression)) {
+			// the remote device evaluates the children
+			return;
+		}
+		Expression left = null;
+		Expression right = null;
+		if (expression instanceof LogicExpression) {
+			left = ((LogicExpression) expression).getLeft();
+			right = ((LogicExpression) expression).getRight();
+		} else if (expression instanceof ComparisonExpression) {
+			left = ((ComparisonExpression) expression).getLeft();
+			right = ((ComparisonExpression) expression).getRight();
+		} else if (expression instanceof MathValueExpression) {
+			left = ((MathValueExpression) expression).getLeft();
+			right = ((MathValueExpression) expression).getRight();
+		}
+		if (left != null) {
+			add(id + Expression.LEFT_SUFFIX, left, node, expressions, ids,
+					parents);
+		}
+		if (right != null) {
+			add(id + Expression.RIGHT_SUFFIX, right, node, expressions, ids,
+					parents);
+		}
+	}
+
+	private static byte kindOf(Expression expression) {
+		if (isRemote(expression)) {
+			return REMOTE;
+		} else if (expression instanceof LogicExpression) {
+			return LOGIC;
+		} else if (expression instanceof ComparisonExpression) {
+			return COMPARISON;
+		} else if (expression instanceof MathValueExpression) {
+			return MATH;
+		} else if (expression instanceof ConstantValueExpression) {
+			return CONSTANT;
+		} else if (expression instanceof SensorValueExpression) {
+			if (((SensorValueExpression) expression).getEntity().equals("time")) {
+				return TIME;
+			}
+			return SENSOR;
+		}
+		throw new RuntimeException("Unknown expression type: " + expression);
+	}
+
+	private static Result slotFor(byte kind, Expression expression) {
+		switch (kind) {
+		case COMPARISON:
+			return new ComparatorResult(0, ((ComparisonExpression) expression)
+					.getLeft().getHistoryReductionMode(),
+					((ComparisonExpression) expression).getRight()
+							.getHistoryReductionMode());
+		case CONSTANT:
+		case TIME:
+			return null;
+		default:
+			return new MutableResult();
+		}
+	}
+
+	private static boolean isRemote(Expression expression) {
+		String location = expression.getLocation();
+		return !location.equals(Expression.LOCATION_SELF)
+				&& !location.equals(Expression.LOCATION_INDEPENDENT);
+	}
+
+	public String getRootId() {
+		return mRootId;
+	}
+
+	/**
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return mExpressions.length;
+	}
+
+	/**
+	 * @param id
+	 *            a node id string
+	 * @return the index of the node, or {@link #NONE} if there is no such node
+	 */
+	public int indexOf(String id) {
+		for (int i = 0; i < mIds.length; i++) {
+			if (mIds[i].equals(id)) {
+				return i;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Marks a node and all of its ancestors as dirty, so that they are
+	 * recomputed at the next evaluation.
+	 *
+	 * @param node
+	 *            the node that got new data
+	 */
+	public void markDirty(int node) {
+		// don't stop at a node that is already dirty, its parent might be
+		// clean if the node was skipped by short circuiting
+		for (; node != NONE; node = mParents[node]) {
+			mDirty[node] = true;
+		}
+	}
+
+}
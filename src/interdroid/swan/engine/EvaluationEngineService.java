@@ -1,6 +1,7 @@
 package interdroid.swan.engine;
 
 import interdroid.swan.ExpressionManager;
+import interdroid.swan.QosClass;
 import interdroid.swan.R;
 import interdroid.swan.SensorConfigurationException;
 import interdroid.swan.SwanException;
@@ -10,12 +11,15 @@ import interdroid.swan.sensors.SensorInterface;
 import interdroid.swan.swansong.Expression;
 import interdroid.swan.swansong.ExpressionFactory;
 import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.TimestampedValue;
 import interdroid.swan.swansong.ValueExpression;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.List;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -24,10 +28,12 @@ import android.app.Service;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -37,7 +43,7 @@ public class EvaluationEngineService extends Service {
 
 	private static final String DATABASE_NAME = "swan";
 	private static final String TABLE = "expressions";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 3;
 	private static final int NOTIFICATION_ID = 1;
 
 	public static final String ACTION_REGISTER_REMOTE = "interdroid.swan.register_remote";
@@ -52,8 +58,6 @@ public class EvaluationEngineService extends Service {
 		return null;
 	}
 
-	PriorityQueue<QueuedExpression> mEvaluationQueue = new PriorityQueue<QueuedExpression>();
-
 	/** The context expressions, mapped by id. */
 	private final HashMap<String, QueuedExpression> mRegisteredExpressions = new HashMap<String, QueuedExpression>() {
 		/**
@@ -76,89 +80,80 @@ public class EvaluationEngineService extends Service {
 
 	};
 
-	Thread mEvaluationThread = new Thread() {
-		public void run() {
-			while (!interrupted()) {
-				QueuedExpression head = mEvaluationQueue.peek();
-				if (head == null) {
-					Log.d(TAG, "Nothing to evaluate!");
-					synchronized (mEvaluationThread) {
-						try {
-							mEvaluationThread.wait();
-						} catch (InterruptedException e) {
-							continue;
-						}
-					}
-				} else {
-					long deferUntil = head.getDeferUntil();
-					if (deferUntil <= System.currentTimeMillis()) {
-						// evaluate now
-						try {
-							// evaluation delay is the time in ms between when
-							// the expression should be evaluated (as indicated
-							// by deferuntil) and when it is really evaluated.
-							// Normally the evaluation delay is neglectable, but
-							// when the load is high, this can become
-							// significant.
-							long evaluationDelay;
-							if (deferUntil != 0) {
-								evaluationDelay = System.currentTimeMillis()
-										- deferUntil;
-								// code below for debugging purposes
-								if (evaluationDelay > 3600000) {
-									throw new RuntimeException(
-											"Weird evaluation delay: "
-													+ evaluationDelay + ", "
-													+ deferUntil);
-								}
-							} else {
-								evaluationDelay = 0;
-							}
+	/**
+	 * Preference key for the number of evaluation threads, expressions are
+	 * sharded over these threads by their id.
+	 */
+	public static final String PREF_EVALUATION_THREADS = "evaluation_threads";
 
-							long start = System.currentTimeMillis();
+	private static final int DEFAULT_EVALUATION_THREADS = 2;
 
-							Result result = mEvaluationManager.evaluate(
-									head.getId(), head.getExpression(),
-									System.currentTimeMillis());
+	/**
+	 * Preference key for the time in ms within which sensor notifications for
+	 * the same expression are merged into a single evaluation.
+	 */
+	public static final String PREF_COALESCING_WINDOW = "notify_coalescing_window";
 
-							long end = System.currentTimeMillis();
+	private static final int DEFAULT_COALESCING_WINDOW = 20;
 
-							// update with statistics: evaluationTime and evaluationDelay
-							head.evaluated((end - start), evaluationDelay);
+	/**
+	 * Preference key for the minimum time in ms between two evaluations of an
+	 * expression that are triggered by sensor notifications.
+	 */
+	public static final String PREF_MIN_REEVALUATION_INTERVAL = "min_reevaluation_interval";
 
-							if (head.update(result)) {
-								Log.d(TAG, "Result: " + result);
-								sendUpdate(head, result);
-							}
-							// re add the expression to the queue
-							synchronized (mEvaluationThread) {
-								mEvaluationQueue.remove(head);
-								mEvaluationQueue.add(head);
-							}
-						} catch (SwanException e) {
-							Log.d(TAG, "Failed to evaluate", e);
-						}
-					} else {
-						synchronized (mEvaluationThread) {
-							try {
-								long waitTime = Math.max(
-										1,
-										head.getDeferUntil()
-												- System.currentTimeMillis());
-								// Log.d(TAG, "Waiting for " + waitTime +
-								// " ms.");
-								mEvaluationThread.wait(waitTime);
-								// Log.d(TAG, "Done waiting for " + waitTime
-								// + " ms.");
-							} catch (InterruptedException e) {
-								continue;
-							}
-						}
-					}
-				}
-			}
-		}
-	};
+	private static final int DEFAULT_MIN_REEVALUATION_INTERVAL = 0;
+
+	/**
+	 * Preference key for the average evaluation delay in ms above which an
+	 * evaluation shard degrades its service, 0 disables degradation.
+	 */
+	public static final String PREF_OVERLOAD_LAG_THRESHOLD = "overload_lag_threshold";
+
+	private static final int DEFAULT_OVERLOAD_LAG_THRESHOLD = 500;
+
+	/**
+	 * Preference key for the time in ms by which deferrals that are not
+	 * guaranteed are stretched per degradation level.
+	 */
+	public static final String PREF_OVERLOAD_STRETCH = "overload_stretch";
+
+	private static final int DEFAULT_OVERLOAD_STRETCH = 1000;
+
+	/**
+	 * Preference key for the maximum number of sensor values kept in the
+	 * windows that the engine fetched from sensors.
+	 */
+	public static final String PREF_RESULT_CACHE_BUDGET = "result_cache_budget";
+
+	private static final int DEFAULT_RESULT_CACHE_BUDGET = 10000;
+
+	/**
+	 * Preference key for the time in ms during which updates for the same
+	 * application are collected into a single broadcast, 0 disables
+	 * batching.
+	 */
+	public static final String PREF_UPDATE_BATCH_WINDOW = "update_batch_window";
+
+	private static final int DEFAULT_UPDATE_BATCH_WINDOW = 10;
+
+	/**
+	 * Preference key for whether sensor values are read through shared memory
+	 * for sensors that support it, instead of through Binder. Off by default,
+	 * reads of shared memory are best-effort, see
+	 * {@link interdroid.swan.sensors.SharedValues}.
+	 */
+	public static final String PREF_SHARED_VALUES = "shared_values";
+
+	private static final boolean DEFAULT_SHARED_VALUES = false;
+
+	private UpdateBatcher mUpdateBatcher;
+
+	private long mMinReevaluationInterval;
+
+	private int mDegradationLevel;
+
+	EvaluationShard[] mShards;
 
 	NotificationManager mNotificationManager;
 	Notification mNotification;
@@ -173,7 +168,8 @@ public class EvaluationEngineService extends Service {
 		try {
 			Cursor c = db.query(TABLE, new String[] { "expression_id",
 					"expression", "on_true", "on_false", "on_undefined",
-					"on_new_values" }, null, null, null, null, null);
+					"on_new_values", "qos_class", "min_reevaluation_interval" },
+					null, null, null, null, null);
 			if (c != null) {
 				try {
 					if (c.getCount() > 0) {
@@ -202,8 +198,14 @@ public class EvaluationEngineService extends Service {
 											c.getString(5), 0);
 								}
 
+								QosClass qosClass = QosClass.parse(c
+										.getString(6));
+								long minReevaluationInterval = c.isNull(7) ? -1
+										: c.getLong(7);
+
 								doRegister(expressionId, expression, onTrue,
-										onFalse, onUndefined, onNewValues);
+										onFalse, onUndefined, onNewValues,
+										qosClass, minReevaluationInterval);
 							} catch (Exception e) {
 								Log.e(TAG, "Error while restoring after boot.",
 										e);
@@ -264,12 +266,23 @@ public class EvaluationEngineService extends Service {
 		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(new File(dbDir,
 				DATABASE_NAME), null);
 		Log.d(TAG, "Got database version: " + db.getVersion());
-		if (db.getVersion() < DATABASE_VERSION) {
+		if (db.getVersion() == 1 || db.getVersion() == 2) {
+			// keep the registered expressions, they get the default class and
+			// interval
+			Log.d(TAG, "Upgrading table: " + TABLE);
+			if (db.getVersion() == 1) {
+				db.execSQL("ALTER TABLE " + TABLE
+						+ " ADD COLUMN qos_class string");
+			}
+			db.execSQL("ALTER TABLE " + TABLE
+					+ " ADD COLUMN min_reevaluation_interval integer");
+			db.setVersion(DATABASE_VERSION);
+		} else if (db.getVersion() < DATABASE_VERSION) {
 			Log.d(TAG, "Creating table: " + TABLE);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE);
 			db.execSQL("CREATE TABLE "
 					+ TABLE
-					+ " (_id integer primary key autoincrement, expression_id string, expression string, on_true string, on_false string, on_undefined string, on_new_values string)");
+					+ " (_id integer primary key autoincrement, expression_id string, expression string, on_true string, on_false string, on_undefined string, on_new_values string, qos_class string, min_reevaluation_interval integer)");
 			db.setVersion(DATABASE_VERSION);
 		}
 		return db;
@@ -305,6 +318,11 @@ public class EvaluationEngineService extends Service {
 			if (queued.getOnNewValues() != null) {
 				values.put("on_new_values", queued.getOnNewValues().toUri(0));
 			}
+			values.put("qos_class", queued.getQosClass().name());
+			if (queued.hasOwnMinReevaluationInterval()) {
+				values.put("min_reevaluation_interval",
+						queued.getMinReevaluationInterval());
+			}
 			db.insert(TABLE, "expression_id", values);
 		} finally {
 			closeDb(db);
@@ -332,8 +350,12 @@ public class EvaluationEngineService extends Service {
 				Intent onFalse = intent.getParcelableExtra("onFalse");
 				Intent onUndefined = intent.getParcelableExtra("onUndefined");
 				Intent onNewValues = intent.getParcelableExtra("onNewValues");
+				QosClass qosClass = QosClass.parse(intent
+						.getStringExtra("qosClass"));
+				long minReevaluationInterval = intent.getLongExtra(
+						"minReevaluationInterval", -1);
 				doRegister(id, expression, onTrue, onFalse, onUndefined,
-						onNewValues);
+						onNewValues, qosClass, minReevaluationInterval);
 			} catch (Throwable t) {
 				Log.d(TAG,
 						"Failed to register expression: "
@@ -342,6 +364,9 @@ public class EvaluationEngineService extends Service {
 		} else if (ExpressionManager.ACTION_UNREGISTER.equals(action)) {
 			String id = intent.getStringExtra("expressionId");
 			doUnregister(id);
+		} else if (ExpressionManager.ACTION_REQUEST_FULL_WINDOW.equals(action)) {
+			doRequestFullWindow(intent.getStringExtra("expressionId"));
+			return START_STICKY;
 		} else if (ACTION_REGISTER_REMOTE.equals(action)) {
 			Log.d(TAG, "Got remote registration");
 			Bundle extras = intent.getExtras();
@@ -352,7 +377,7 @@ public class EvaluationEngineService extends Service {
 				Expression expression = ExpressionFactory
 						.parse(expressionString);
 				doRegister(regId + Expression.SEPARATOR + expId, expression,
-						null, null, null, null);
+						null, null, null, null, QosClass.NORMAL, -1);
 			} catch (Throwable t) {
 				Log.d(TAG, "Failed to register remote expression: "
 						+ expressionString, t);
@@ -408,21 +433,29 @@ public class EvaluationEngineService extends Service {
 	private Intent getActiveSensors() {
 		Intent intent = new Intent(UPDATE_SENSORS);
 		intent.putExtra("sensors", mEvaluationManager.activeSensorsAsBundle());
+		intent.putExtra("suspended-sensors",
+				mEvaluationManager.getSuspendedSensors());
+		intent.putExtra("sensing-time-saved",
+				mEvaluationManager.getSensingTimeSaved());
 		return intent;
 	}
 
 	private void doRegister(final String id, final Expression expression,
 			final Intent onTrue, final Intent onFalse,
-			final Intent onUndefined, Intent onNewValues) {
+			final Intent onUndefined, Intent onNewValues,
+			final QosClass qosClass, final long minReevaluationInterval) {
 		// handle registration
 		Log.d(TAG, "registring id: " + id + ", expression: " + expression);
 		if (mRegisteredExpressions.containsKey(id)) {
 			// FAIL!
 			Log.d(TAG, "failed to register, already contains id!");
+			// the listener may have restarted and lost its window
+			doRequestFullWindow(id);
 			return;
 		}
+		CompiledExpression compiled;
 		try {
-			mEvaluationManager.initialize(id, expression);
+			compiled = mEvaluationManager.initialize(id, expression);
 		} catch (SensorConfigurationException e) {
 			// FAIL!
 			e.printStackTrace();
@@ -432,20 +465,35 @@ public class EvaluationEngineService extends Service {
 			e.printStackTrace();
 			return;
 		}
-		synchronized (mEvaluationThread) {
-			// add this expression to our registered expression, the queue and
-			// notify the evaluation thread
-			QueuedExpression queued = new QueuedExpression(id, expression,
-					onTrue, onFalse, onUndefined, onNewValues);
-			mRegisteredExpressions.put(id, queued);
-			mEvaluationQueue.add(queued);
-			mEvaluationThread.notify();
-			LocalBroadcastManager.getInstance(this).sendBroadcast(
-					getRegisteredExpressions());
+		// add this expression to our registered expression and the queue of
+		// its shard, which will notify the evaluation thread
+		QueuedExpression queued = new QueuedExpression(id, expression, onTrue,
+				onFalse, onUndefined, onNewValues, qosClass);
+		queued.setCompiled(compiled);
+		if (minReevaluationInterval >= 0) {
+			queued.setOwnMinReevaluationInterval(minReevaluationInterval);
+		} else {
+			queued.setMinReevaluationInterval(mMinReevaluationInterval);
 		}
+		mRegisteredExpressions.put(id, queued);
+		getShard(id).add(queued);
+		LocalBroadcastManager.getInstance(this).sendBroadcast(
+				getRegisteredExpressions());
 
 	}
 
+	private void doRequestFullWindow(String id) {
+		QueuedExpression queued = mRegisteredExpressions.get(id);
+		if (queued == null) {
+			Log.d(TAG, "Full window requested, but no expression registered with id: "
+					+ id);
+			return;
+		}
+		// the next evaluation sends the full window
+		queued.deliverFull();
+		getShard(id).reschedule(queued, id);
+	}
+
 	private Intent getRegisteredExpressions() {
 		Intent intent = new Intent(UPDATE_EXPRESSIONS);
 		Bundle[] expressions = new Bundle[mRegisteredExpressions.size()];
@@ -455,6 +503,16 @@ public class EvaluationEngineService extends Service {
 			i++;
 		}
 		intent.putExtra("expressions", expressions);
+		Bundle[] shards = new Bundle[mShards.length];
+		for (int j = 0; j < mShards.length; j++) {
+			shards[j] = mShards[j].toBundle();
+		}
+		intent.putExtra("shards", shards);
+		intent.putExtra("result-cache",
+				mEvaluationManager.resultCacheAsBundle());
+		Bundle updates = new Bundle();
+		mUpdateBatcher.addTo(updates);
+		intent.putExtra("update-batcher", updates);
 		return intent;
 	}
 
@@ -466,16 +524,12 @@ public class EvaluationEngineService extends Service {
 			return;
 		}
 		// first stop evaluating
-		synchronized (mEvaluationThread) {
-			mRegisteredExpressions.remove(id);
-			mEvaluationQueue.remove(expression);
-			// do we really need to notify the evaluation thread here?
-			mEvaluationThread.notify();
-			LocalBroadcastManager.getInstance(this).sendBroadcast(
-					getRegisteredExpressions());
-		}
+		mRegisteredExpressions.remove(id);
+		getShard(id).remove(expression);
+		LocalBroadcastManager.getInstance(this).sendBroadcast(
+				getRegisteredExpressions());
 		// then stop sensing
-		mEvaluationManager.stop(id, expression.getExpression());
+		mEvaluationManager.stop(expression.getCompiled());
 	}
 
 	// what we get back here are leaf ids of expressions.
@@ -483,7 +537,11 @@ public class EvaluationEngineService extends Service {
 		if (ids == null) {
 			return;
 		}
+		List<String> leafIds = new ArrayList<String>();
 		for (String id : ids) {
+			leafIds.addAll(mEvaluationManager.getNotifiedLeafIds(id));
+		}
+		for (String id : leafIds) {
 			String rootId = getRootId(id);
 			QueuedExpression queued = mRegisteredExpressions.get(rootId);
 			if (queued == null) {
@@ -498,14 +556,7 @@ public class EvaluationEngineService extends Service {
 			if (queued.getExpression() instanceof ValueExpression
 					|| !queued.isDeferUntilGuaranteed()) {
 				// evaluate now!
-				synchronized (mEvaluationThread) {
-					// get it out the queue, update defer until, and put it
-					// back, then notify the evaluation thread.
-					mEvaluationQueue.remove(queued);
-					mEvaluationManager.clearCacheFor(id);
-					mEvaluationQueue.add(queued);
-					mEvaluationThread.notifyAll();
-				}
+				getShard(rootId).reschedule(queued, id);
 			}
 		}
 	}
@@ -519,10 +570,33 @@ public class EvaluationEngineService extends Service {
 	@Override
 	public final void onCreate() {
 		super.onCreate();
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(this);
 		// construct the sensor manager
-		mEvaluationManager = new EvaluationManager(this);
-		// kick off the evaluation thread
-		mEvaluationThread.start();
+		mEvaluationManager = new EvaluationManager(this, prefs.getInt(
+				PREF_RESULT_CACHE_BUDGET, DEFAULT_RESULT_CACHE_BUDGET),
+				prefs.getBoolean(PREF_SHARED_VALUES, DEFAULT_SHARED_VALUES));
+		mUpdateBatcher = new UpdateBatcher(this, prefs.getInt(
+				PREF_UPDATE_BATCH_WINDOW, DEFAULT_UPDATE_BATCH_WINDOW));
+		// kick off the evaluation threads
+		int threads = Math.max(1, prefs.getInt(PREF_EVALUATION_THREADS,
+				DEFAULT_EVALUATION_THREADS));
+		long coalescingWindow = prefs.getInt(PREF_COALESCING_WINDOW,
+				DEFAULT_COALESCING_WINDOW);
+		mMinReevaluationInterval = prefs.getInt(
+				PREF_MIN_REEVALUATION_INTERVAL,
+				DEFAULT_MIN_REEVALUATION_INTERVAL);
+		long lagThreshold = prefs.getInt(PREF_OVERLOAD_LAG_THRESHOLD,
+				DEFAULT_OVERLOAD_LAG_THRESHOLD);
+		long stretch = prefs.getInt(PREF_OVERLOAD_STRETCH,
+				DEFAULT_OVERLOAD_STRETCH);
+		mShards = new EvaluationShard[threads];
+		for (int i = 0; i < threads; i++) {
+			mShards[i] = new EvaluationShard(i, this, mEvaluationManager,
+					coalescingWindow, new OverloadController(lagThreshold,
+							stretch));
+			mShards[i].start();
+		}
 		// init the notification stuff
 		mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 		mNotification = new Notification(R.drawable.ic_stat_swan,
@@ -534,7 +608,10 @@ public class EvaluationEngineService extends Service {
 	@Override
 	public void onDestroy() {
 		mEvaluationManager.destroyAll();
-		mEvaluationThread.interrupt();
+		for (EvaluationShard shard : mShards) {
+			shard.interrupt();
+		}
+		mUpdateBatcher.shutdown();
 		super.onDestroy();
 	}
 
@@ -562,7 +639,7 @@ public class EvaluationEngineService extends Service {
 		mNotificationManager.notify(NOTIFICATION_ID, mNotification);
 	}
 
-	private void sendUpdate(QueuedExpression queued, Result result) {
+	void sendUpdate(QueuedExpression queued, Result result) {
 		// we know it has changed
 		if (queued.getId().contains(Expression.SEPARATOR)) {
 			sendUpdateToRemote(queued.getId().split(Expression.SEPARATOR)[0],
@@ -579,8 +656,22 @@ public class EvaluationEngineService extends Service {
 				Log.d(TAG, "Update canceled, no values");
 				return;
 			}
-			update.putExtra(ExpressionManager.EXTRA_NEW_VALUES,
-					result.getValues());
+			TimestampedValue[] values = result.getValues();
+			if (update.getBooleanExtra(ExpressionManager.EXTRA_DELTA_VALUES,
+					false)) {
+				// only send the values the listener hasn't seen yet
+				int retained = queued.deliver(values);
+				if (retained > 0) {
+					values = Arrays.copyOf(values, values.length - retained);
+				}
+				update.putExtra(ExpressionManager.EXTRA_RETAINED_VALUES,
+						retained);
+				update.putExtra(ExpressionManager.EXTRA_UPDATE_SEQUENCE,
+						queued.getDeliveredSequence());
+				update.putExtra(ExpressionManager.EXTRA_UPDATE_EPOCH,
+						queued.getStartTime());
+			}
+			update.putExtra(ExpressionManager.EXTRA_NEW_VALUES, values);
 		} else {
 			update.putExtra(ExpressionManager.EXTRA_NEW_TRISTATE, result
 					.getTriState().name());
@@ -593,7 +684,9 @@ public class EvaluationEngineService extends Service {
 			if (intentType == null
 					|| intentType
 							.equals(ExpressionManager.INTENT_TYPE_BROADCAST)) {
-				sendBroadcast(update);
+				if (!mUpdateBatcher.add(update)) {
+					sendBroadcast(update);
+				}
 			} else if (intentType
 					.equals(ExpressionManager.INTENT_TYPE_ACTIVITY)) {
 				update.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -606,6 +699,24 @@ public class EvaluationEngineService extends Service {
 		}
 	}
 
+	/**
+	 * Called by a shard when its degradation level changed. Clients are
+	 * informed when the highest level over all shards changes.
+	 */
+	synchronized void degradationChanged() {
+		int level = 0;
+		for (EvaluationShard shard : mShards) {
+			level = Math.max(level, shard.getDegradationLevel());
+		}
+		if (level == mDegradationLevel) {
+			return;
+		}
+		mDegradationLevel = level;
+		Intent intent = new Intent(ExpressionManager.ACTION_DEGRADATION);
+		intent.putExtra(ExpressionManager.EXTRA_DEGRADATION_LEVEL, level);
+		sendBroadcast(intent);
+	}
+
 	private void sendUpdateToRemote(final String registrationId,
 			final String expressionId, final Result result) {
 		// pusher is async
@@ -617,6 +728,12 @@ public class EvaluationEngineService extends Service {
 		}
 	}
 
+	// all evaluations of an expression happen on the shard selected by its
+	// root id, which keeps the evaluations of that expression ordered.
+	private EvaluationShard getShard(String rootId) {
+		return mShards[(rootId.hashCode() & Integer.MAX_VALUE) % mShards.length];
+	}
+
 	// helper function to strip the suffixes for an expression generated by the
 	// evaluation engine and retrieve the original user id (the root id)
 	private String getRootId(String id) {
@@ -7,6 +7,7 @@ import interdroid.swan.SwanException;
 import interdroid.swan.crossdevice.Pusher;
 import interdroid.swan.crossdevice.Registry;
 import interdroid.swan.sensors.Sensor;
+import interdroid.swan.sensors.SharedValues;
 import interdroid.swan.sensors.TimeSensor;
 import interdroid.swan.swansong.BinaryLogicOperator;
 import interdroid.swan.swansong.Comparator;
@@ -26,10 +27,18 @@ import interdroid.swan.swansong.TriStateExpression;
 import interdroid.swan.swansong.UnaryLogicOperator;
 import interdroid.swan.swansong.ValueExpression;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -37,6 +46,7 @@ import android.content.ServiceConnection;
 import android.location.Location;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -44,30 +54,72 @@ public class EvaluationManager {
 
 	private static final String TAG = "EvaluationManager";
 
-	// time it takes to start up the remote sensor, this is a bit arbitrary
-	// because we don't (and cannot) know when the push message arrives
-	private static final long START_UP_TIME_REMOTE_SENSOR = 60 * 1000;
-
-	/** The sensor information. */
-	private List<SensorInfo> mSensorList = new ArrayList<SensorInfo>();
+	/**
+	 * The number of evaluations of a logic node after which the evaluation
+	 * order of its children is planned again from the node statistics.
+	 */
+	private static final int PLAN_INTERVAL = 16;
 
-	/** The service connections. */
-	private final Map<String, ServiceConnection> mConnections = new HashMap<String, ServiceConnection>();
+	/**
+	 * The sensor information. Replaced as a whole on discovery, since multiple
+	 * evaluation shards may be iterating over it.
+	 */
+	private volatile List<SensorInfo> mSensorList = new ArrayList<SensorInfo>();
 
-	/** The sensors proxies */
-	private final Map<String, Sensor> mSensors = new HashMap<String, Sensor>();
+	/** The sensor bindings, mapped by their key. */
+	private final ConcurrentMap<String, SensorBinding> mBindings = new ConcurrentHashMap<String, SensorBinding>();
 
 	/** The context (for launching new services). */
 	private final Context mContext;
 
-	private final Map<String, Result> mCachedResults = new HashMap<String, Result>();
+	/** Keeps the memory used by the sensor windows within a budget. */
+	private final ResultCache mResultCache;
+
+	private final boolean mSharedValues;
+
+	/**
+	 * The compiled expressions, mapped by the id of every node, used to map
+	 * notifications and remote results back to their node.
+	 */
+	private final ConcurrentMap<String, CompiledExpression> mNodes = new ConcurrentHashMap<String, CompiledExpression>();
+
+	/**
+	 * Re-binds sensors that were suspended by sleep and be ready. A single
+	 * thread with a time ordered queue serves all suspended sensors.
+	 */
+	private final ScheduledExecutorService mWakeUpExecutor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/** The number of sensor nodes that are currently suspended. */
+	private final AtomicInteger mSuspendedSensors = new AtomicInteger();
+
+	/** The total time in ms that sensor nodes have been suspended. */
+	private final AtomicLong mSensingTimeSaved = new AtomicLong();
 
-	public EvaluationManager(Context context) {
+	/**
+	 * @param context
+	 *            the context
+	 * @param resultCacheBudget
+	 *            the maximum number of sensor values kept in fetched windows
+	 * @param sharedValues
+	 *            whether to read sensor values through shared memory when the
+	 *            sensor supports it
+	 */
+	public EvaluationManager(Context context, long resultCacheBudget,
+			boolean sharedValues) {
 		mContext = context;
+		mResultCache = new ResultCache(resultCacheBudget);
+		mSharedValues = sharedValues;
 	}
 
 	public void newRemoteResult(String id, Result result) {
-		mCachedResults.put(id, result);
+		CompiledExpression compiled = mNodes.get(id);
+		if (compiled == null) {
+			Log.d(TAG, "Got remote result for unknown id: " + id);
+			return;
+		}
+		// the notification that follows marks the node dirty
+		compiled.mResults.set(compiled.indexOf(id), result);
 	}
 
 	public void resolveLocation(Expression expression) {
@@ -107,134 +159,236 @@ public class EvaluationManager {
 		}
 	}
 
-	public void initialize(String id, Expression expression)
+	/**
+	 * Compiles the expression and lets its sensors start producing data.
+	 * 
+	 * @param id
+	 *            the id of the expression
+	 * @param expression
+	 *            the expression
+	 * @return the compiled expression, to be passed to
+	 *         {@link #evaluate(CompiledExpression, long)} and
+	 *         {@link #stop(CompiledExpression)}
+	 */
+	public CompiledExpression initialize(String id, Expression expression)
 			throws SensorConfigurationException, SensorSetupFailedException {
-		// should get the sensors start producing data.
 		resolveLocation(expression);
-		String location = expression.getLocation();
-		if (!location.equals(Expression.LOCATION_SELF)
-				&& !location.equals(Expression.LOCATION_INDEPENDENT)) {
-			initializeRemote(id, expression, location);
-		} else if (expression instanceof LogicExpression) {
-			initialize(id + Expression.LEFT_SUFFIX,
-					((LogicExpression) expression).getLeft());
-			initialize(id + Expression.RIGHT_SUFFIX,
-					((LogicExpression) expression).getRight());
-		} else if (expression instanceof ComparisonExpression) {
-			initialize(id + Expression.LEFT_SUFFIX,
-					((ComparisonExpression) expression).getLeft());
-			initialize(id + Expression.RIGHT_SUFFIX,
-					((ComparisonExpression) expression).getRight());
-		} else if (expression instanceof MathValueExpression) {
-			initialize(id + Expression.LEFT_SUFFIX,
-					((MathValueExpression) expression).getLeft());
-			initialize(id + Expression.RIGHT_SUFFIX,
-					((MathValueExpression) expression).getRight());
-		} else if (expression instanceof SensorValueExpression) {
-			if (((SensorValueExpression) expression).getEntity().equals("time")) {
-				return;
+		CompiledExpression compiled = CompiledExpression.compile(id,
+				expression);
+		int node = 0;
+		try {
+			for (; node < compiled.size(); node++) {
+				initializeNode(compiled, node);
 			}
+		} catch (SensorConfigurationException e) {
+			stopNodes(compiled, node);
+			throw e;
+		} catch (SensorSetupFailedException e) {
+			stopNodes(compiled, node);
+			throw e;
+		}
+		addNodes(compiled);
+		return compiled;
+	}
+
+	/**
+	 * Maps the ids of the nodes of a compiled expression to it, so that
+	 * notifications and remote results reach their node.
+	 */
+	void addNodes(CompiledExpression compiled) {
+		for (int node = 0; node < compiled.size(); node++) {
+			mNodes.put(compiled.mIds[node], compiled);
+		}
+	}
+
+	private void initializeNode(CompiledExpression compiled, int node)
+			throws SensorConfigurationException, SensorSetupFailedException {
+		switch (compiled.mKinds[node]) {
+		case CompiledExpression.REMOTE:
+			initializeRemote(compiled.mIds[node], compiled.mExpressions[node],
+					compiled.mExpressions[node].getLocation());
+			break;
+		case CompiledExpression.SENSOR:
 			// do the real work here, bind to the sensor.
-			bindToSensor(id, (SensorValueExpression) expression, false);
+			bindToSensor(compiled, node, false);
+			break;
 		}
 	}
 
-	public void stop(String id, Expression expression) {
-		// should get the sensors stop producing data.
-		String location = expression.getLocation();
-		if (!location.equals(Expression.LOCATION_SELF)
-				&& !location.equals(Expression.LOCATION_INDEPENDENT)) {
-			stopRemote(id, expression);
+	/**
+	 * Lets the sensors of a compiled expression stop producing data.
+	 * 
+	 * @param compiled
+	 *            the compiled expression
+	 */
+	public void stop(CompiledExpression compiled) {
+		for (int node = 0; node < compiled.size(); node++) {
+			mNodes.remove(compiled.mIds[node]);
 		}
-		if (expression instanceof LogicExpression) {
-			stop(id + Expression.LEFT_SUFFIX,
-					((LogicExpression) expression).getLeft());
-			stop(id + Expression.RIGHT_SUFFIX,
-					((LogicExpression) expression).getRight());
-		} else if (expression instanceof ComparisonExpression) {
-			stop(id + Expression.LEFT_SUFFIX,
-					((ComparisonExpression) expression).getLeft());
-			stop(id + Expression.RIGHT_SUFFIX,
-					((ComparisonExpression) expression).getRight());
-		} else if (expression instanceof MathValueExpression) {
-			stop(id + Expression.LEFT_SUFFIX,
-					((MathValueExpression) expression).getLeft());
-			stop(id + Expression.RIGHT_SUFFIX,
-					((MathValueExpression) expression).getRight());
-		} else if (expression instanceof SensorValueExpression) {
-			if (((SensorValueExpression) expression).getEntity().equals("time")) {
-				return;
+		synchronized (compiled) {
+			// an evaluation that is still running must not suspend or wake up
+			// sensors anymore, stopping the nodes cancels pending wake ups
+			compiled.mStopped = true;
+		}
+		stopNodes(compiled, compiled.size());
+	}
+
+	/**
+	 * Stops the nodes below the given index.
+	 */
+	private void stopNodes(CompiledExpression compiled, int end) {
+		for (int node = 0; node < end; node++) {
+			switch (compiled.mKinds[node]) {
+			case CompiledExpression.REMOTE:
+				stopRemote(compiled.mIds[node], compiled.mExpressions[node]);
+				break;
+			case CompiledExpression.SENSOR:
+				stopSensor(compiled, node);
+				break;
+			}
+		}
+	}
+
+	private void stopSensor(CompiledExpression compiled, int node) {
+		synchronized (compiled) {
+			// a suspended sensor is already unbound
+			if (!cancelWakeUp(compiled, node)) {
+				// do the real work here, unbind from the sensor.
+				unbindFromSensor(compiled, node);
 			}
-			// do the real work here, unbind from the sensor.
-			unbindFromSensor(id);
 		}
 	}
 
 	public void destroyAll() {
-		for (String id : mSensors.keySet()) {
-			unbindFromSensor(id);
+		for (CompiledExpression c : new HashSet<CompiledExpression>(
+				mNodes.values())) {
+			for (int node = 0; node < c.size(); node++) {
+				if (c.mKinds[node] == CompiledExpression.SENSOR) {
+					stopSensor(c, node);
+				}
+			}
 		}
+		mWakeUpExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return the statistics of the result cache.
+	 */
+	public Bundle resultCacheAsBundle() {
+		return mResultCache.toBundle();
+	}
+
+	/**
+	 * @return the number of sensor leafs that are suspended by sleep and be
+	 *         ready.
+	 */
+	public int getSuspendedSensors() {
+		return mSuspendedSensors.get();
+	}
+
+	/**
+	 * @return the total time in ms that sensor leafs have been suspended by
+	 *         sleep and be ready.
+	 */
+	public long getSensingTimeSaved() {
+		return mSensingTimeSaved.get();
 	}
 
+	/**
+	 * Invalidates the cached results on the path from the given id to its
+	 * root, so that they are recomputed at the next evaluation.
+	 * 
+	 * @param id
+	 *            the id that got new data
+	 */
 	public void clearCacheFor(String id) {
-		if (mCachedResults.get(id) != null) {
-			mCachedResults.get(id).setDeferUntil(0);
-		}
-		for (String suffix : Expression.RESERVED_SUFFIXES) {
-			if (id.endsWith(suffix)) {
-				clearCacheFor(id.substring(0, id.length() - suffix.length()));
-			}
+		CompiledExpression compiled = mNodes.get(id);
+		if (compiled != null) {
+			compiled.markDirty(compiled.indexOf(id));
 		}
 	}
 
-	public Result evaluate(String id, Expression expression, long now)
+	/**
+	 * Evaluates a compiled expression. Only nodes that got new data or whose
+	 * result expired are recomputed.
+	 * 
+	 * @param compiled
+	 *            the compiled expression
+	 * @param now
+	 *            the evaluation time
+	 * @return the result of the root node
+	 */
+	public Result evaluate(CompiledExpression compiled, long now)
 			throws SwanException {
-		if (expression == null) {
-			throw new RuntimeException("This should not happen! Please debug");
-		}
-		if (mCachedResults.containsKey(id)) {
-			if (mCachedResults.get(id).getDeferUntil() > now) {
-				return mCachedResults.get(id);
-			}
+		compiled.mResultHits = 0;
+		compiled.mResultMisses = 0;
+		return evaluate(compiled, 0, now);
+	}
+
+	private Result evaluate(CompiledExpression compiled, int node, long now)
+			throws SwanException {
+		// only recompute nodes that got new data or expired
+		Result cached = compiled.mResults.get(node);
+		if (cached != null && !compiled.mDirty[node]
+				&& cached.getDeferUntil() > now) {
+			compiled.mResultHits++;
+			return cached;
 		}
+		compiled.mResultMisses++;
 		Result result = null;
-		// if the location is remote, result is null or undefined
-		String location = expression.getLocation();
-		if (!location.equals(Expression.LOCATION_SELF)
-				&& !location.equals(Expression.LOCATION_INDEPENDENT)) {
-			if (expression instanceof TriStateExpression) {
-				if (mCachedResults.containsKey(id)) {
-					return mCachedResults.get(id);
-				} else {
-					result = new Result(now, TriState.UNDEFINED);
-				}
-			} else if (expression instanceof ValueExpression) {
+		long start = System.nanoTime();
+		switch (compiled.mKinds[node]) {
+		case CompiledExpression.REMOTE:
+			// the result is pushed by the remote device
+			if (cached != null) {
+				compiled.mDirty[node] = false;
+				return cached;
+			}
+			MutableResult slot = (MutableResult) compiled.mSlots[node];
+			if (compiled.mExpressions[node] instanceof TriStateExpression) {
+				result = slot.set(now, TriState.UNDEFINED);
+			} else {
 				// we don't have anything cached, so send an empty result.
-				result = new Result(new TimestampedValue[] {}, 0);
+				result = slot.set(MutableResult.NO_VALUES, 0);
 			}
 			result.setDeferUntil(Long.MAX_VALUE);
 			result.setDeferUntilGuaranteed(false);
-		} else if (expression instanceof LogicExpression) {
-			result = applyLogic(id, (LogicExpression) expression, now);
-		} else if (expression instanceof ComparisonExpression) {
-			result = doCompare(id, (ComparisonExpression) expression, now);
-		} else if (expression instanceof ConstantValueExpression) {
-			result = ((ConstantValueExpression) expression).getResult();
-		} else if (expression instanceof MathValueExpression) {
-			result = doMath(id, (MathValueExpression) expression, now);
-		} else if (expression instanceof SensorValueExpression) {
-			if (((SensorValueExpression) expression).getEntity().equals("time")) {
-				throw new RuntimeException(
-						"time can only be used in an ComparisonExpression on the left hand");
+			// don't overwrite a remote result that arrived in the mean time
+			if (!compiled.mResults.compareAndSet(node, null, result)) {
+				result = compiled.mResults.get(node);
 			}
-			result = getFromSensor(id, (SensorValueExpression) expression, now);
+			compiled.mDirty[node] = false;
+			return result;
+		case CompiledExpression.LOGIC:
+			result = applyLogic(compiled, node, now);
+			break;
+		case CompiledExpression.COMPARISON:
+			result = doCompare(compiled, node, now);
+			break;
+		case CompiledExpression.CONSTANT:
+			result = ((ConstantValueExpression) compiled.mExpressions[node])
+					.getResult();
+			break;
+		case CompiledExpression.MATH:
+			result = doMath(compiled, node, now);
+			break;
+		case CompiledExpression.SENSOR:
+			result = getFromSensor(compiled, node, now);
+			break;
+		case CompiledExpression.TIME:
+			throw new RuntimeException(
+					"time can only be used in an ComparisonExpression on the left hand");
 		}
 		if (result != null) {
-			mCachedResults.put(id, result);
+			compiled.mResults.set(node, result);
+			compiled.mDirty[node] = false;
+			compiled.mStatistics[node].evaluated(result, System.nanoTime()
+					- start, now);
 		}
 		return result;
 	}
 
+
 	private void initializeRemote(String id, Expression expression,
 			String resolvedLocation) throws SensorSetupFailedException {
 		// send a push message with 'register' instead of 'initialize',
@@ -352,12 +506,25 @@ public class EvaluationManager {
 				toCrossDeviceString(expression, toRegistrationId));
 	}
 
-	private boolean bindToSensor(final String id,
-			final SensorValueExpression expression, boolean discover)
+	private boolean bindToSensor(final CompiledExpression compiled,
+			final int node, boolean discover)
 			throws SensorConfigurationException, SensorSetupFailedException {
+		final String id = compiled.mIds[node];
+		final SensorValueExpression expression = (SensorValueExpression) compiled.mExpressions[node];
+		// leafs that read exactly the same data share a single binding
+		String key = SensorBinding.keyFor(expression);
+		SensorBinding shared = mBindings.get(key);
+		while (shared != null) {
+			if (shared.addLeaf(id)) {
+				compiled.mBindings.set(node, shared);
+				return true;
+			}
+			// released by its last leaf, but not yet removed
+			mBindings.remove(key, shared);
+			shared = mBindings.get(key);
+		}
 		if (discover) {
 			// run discovery
-			mSensorList.clear();
 			mSensorList = ExpressionManager.getSensors(mContext);
 		}
 		for (SensorInfo sensorInfo : mSensorList) {
@@ -367,12 +534,15 @@ public class EvaluationManager {
 						expression.getValuePath())) {
 					if (sensorInfo.acceptsConfiguration(expression
 							.getConfiguration())) {
+						final SensorBinding binding = new SensorBinding(
+								expression, mResultCache);
 						ServiceConnection conn = new ServiceConnection() {
 
 							@Override
 							public void onServiceDisconnected(ComponentName name) {
 								// we are disconnected for some reason
-								Log.d(TAG, "disconnected for id " + id);
+								Log.d(TAG, "disconnected for id "
+										+ binding.getId());
 							}
 
 							@Override
@@ -380,22 +550,41 @@ public class EvaluationManager {
 									IBinder service) {
 								Sensor sensor = Sensor.Stub
 										.asInterface(service);
-								mSensors.put(id, sensor);
+								binding.setInterfaceVersion(
+										getInterfaceVersion(sensor));
+								binding.setSensor(sensor);
+								if (binding.getInterfaceVersion() >= 1) {
+									setHistoryLength(binding, sensor);
+								}
 								try {
-									sensor.register(id,
+									sensor.register(binding.getId(),
 											expression.getValuePath(),
 											expression.getConfiguration());
 								} catch (RemoteException e) {
 									Log.e(TAG, "Registration failed!", e);
 								}
+								if (mSharedValues
+										&& binding.getInterfaceVersion() >= 1) {
+									shareValues(binding, sensor);
+								}
 
 							}
 						};
+						binding.setConnection(conn);
+						binding.addLeaf(id);
+						while ((shared = mBindings.putIfAbsent(key, binding)) != null) {
+							if (shared.addLeaf(id)) {
+								// another leaf bound in the mean time
+								compiled.mBindings.set(node, shared);
+								return true;
+							}
+							mBindings.remove(key, shared);
+						}
+						compiled.mBindings.set(node, binding);
 						Log.d(TAG,
 								"binding to sensor: " + sensorInfo.getIntent());
 						mContext.bindService(sensorInfo.getIntent(), conn,
 								Context.BIND_AUTO_CREATE);
-						mConnections.put(id, conn);
 						return true;
 					} else {
 						Log.d(TAG, "Sensor does not accept configuration '"
@@ -409,7 +598,7 @@ public class EvaluationManager {
 		}
 		if (!discover) {
 			// try again with discovery
-			if (bindToSensor(id, expression, true)) {
+			if (bindToSensor(compiled, node, true)) {
 				return true;
 			}
 		}
@@ -421,29 +610,122 @@ public class EvaluationManager {
 				+ expression);
 	}
 
-	private void unbindFromSensor(final String id) {
-		ServiceConnection conn = mConnections.remove(id);
-		Sensor sensor = mSensors.remove(id);
+	/**
+	 * @return the version of the Sensor interface the sensor implements, 0
+	 *         if it predates versioning
+	 */
+	private static int getInterfaceVersion(Sensor sensor) {
+		try {
+			// sensors that don't know the call leave the reply empty, which
+			// reads as 0
+			return sensor.getInterfaceVersion();
+		} catch (RemoteException e) {
+			return 0;
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Tells the sensor how much history the binding reads, before it
+	 * registers, so that the sensor never trims below it.
+	 */
+	private void setHistoryLength(SensorBinding binding, Sensor sensor) {
+		try {
+			sensor.setHistoryLength(binding.getId(), binding.getExpression()
+					.getHistoryLength());
+		} catch (RemoteException e) {
+			Log.d(TAG, "Sensor doesn't take history lengths: "
+					+ binding.getId(), e);
+		} catch (RuntimeException e) {
+			Log.d(TAG, "Sensor doesn't take history lengths: "
+					+ binding.getId(), e);
+		}
+	}
+
+	/**
+	 * Maps the values the sensor shares for the binding. Any failure, also
+	 * from sensors that predate shared values, leaves the binding reading
+	 * through Binder.
+	 */
+	private void shareValues(SensorBinding binding, Sensor sensor) {
+		SharedValues shared = null;
+		try {
+			ParcelFileDescriptor descriptor = sensor.getSharedValues(binding
+					.getId());
+			if (descriptor != null) {
+				shared = SharedValues.open(descriptor);
+			}
+		} catch (RemoteException e) {
+			Log.d(TAG, "Sensor doesn't share values: " + binding.getId(), e);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to map shared values: " + binding.getId(), e);
+		} catch (RuntimeException e) {
+			// security exceptions, or a segment that doesn't parse
+			Log.e(TAG, "Failed to map shared values: " + binding.getId(), e);
+		}
+		binding.setSharedValues(shared);
+	}
+
+	/**
+	 * Releases the binding of a sensor node.
+	 * 
+	 * @return whether the sensor was released, false if the binding is still
+	 *         used by other leafs
+	 */
+	private boolean unbindFromSensor(CompiledExpression compiled, int node) {
+		String id = compiled.mIds[node];
+		SensorBinding binding = compiled.mBindings.getAndSet(node, null);
+		if (binding == null) {
+			Log.d(TAG, "Cannot unregister for id: " + id
+					+ ", binding is null, this should not happen!");
+			return false;
+		}
+		if (binding.removeLeaf(id) > 0) {
+			// still in use by other leafs
+			return false;
+		}
+		mBindings.remove(binding.getId(), binding);
+		mResultCache.remove(binding);
+		Sensor sensor = binding.getSensor();
 		if (sensor != null) {
 			try {
-				sensor.unregister(id);
+				sensor.unregister(binding.getId());
 			} catch (RemoteException e) {
-				Log.d(TAG, "Failed to unregister for id: " + id
+				Log.d(TAG, "Failed to unregister for id: " + binding.getId()
 						+ ", this should not happen!", e);
 			}
 		} else {
-			Log.d(TAG, "Cannot unregister for id: " + id
+			Log.d(TAG, "Cannot unregister for id: " + binding.getId()
 					+ ", sensor is null, this should not happen!");
 		}
-		if (conn != null) {
-			mContext.unbindService(conn);
-		} else {
-			Log.d(TAG, "Failed to unbind for id: " + id
-					+ ", connection is null, this should not happen!");
+		mContext.unbindService(binding.getConnection());
+		return true;
+	}
+
+	/**
+	 * Returns the leaf ids that are affected by a notification of a sensor.
+	 * Sensors notify with the id of the shared binding, which is used by one
+	 * or more leafs.
+	 * 
+	 * @param id
+	 *            the notified id
+	 * @return the leaf ids
+	 */
+	public List<String> getNotifiedLeafIds(String id) {
+		SensorBinding binding = mBindings.get(id);
+		if (binding == null) {
+			// not a binding, e.g. a remote result
+			List<String> ids = new ArrayList<String>(1);
+			ids.add(id);
+			return ids;
 		}
+		binding.markDirty();
+		return binding.getLeafIds();
 	}
 
-	private boolean leftFirst(String id, LogicExpression expression, long now) {
+	private boolean leftFirst(CompiledExpression compiled, int node, long now) {
+		LogicExpression expression = (LogicExpression) compiled.mExpressions[node];
 		// For a binary logic operation it is important to make a clever
 		// decision which of the involved expressions is evaluated first.
 		// Depending on the result of this evaluation and the logic operator, it
@@ -472,121 +754,128 @@ public class EvaluationManager {
 		// remains true for about an hour, which will make the logic expression
 		// true for about an hour. Within this hour no evaluation is needed.
 
-		// TODO improve, take "time" into account, if a sensor has time, we
-		// should probably evaluate it first...
-
 		// in case we have a unary operator, it doesn't matter at all.
 		if (expression.getOperator() instanceof UnaryLogicOperator) {
 			return true;
 		}
 
-		// TODO values below should be replaced by real estimates
-		float pLeftTrue = 0.5f; // the chance that evaluating the left part
-								// results in true
-		float pRightTrue = 0.5f; // the chance that evaluating the right part
-									// results in true
-		float leftEvaluationCost = 100;
-		float rightEvaluationCost = 100;
-		float leftSenseCost = 200;
-		float rightSenseCost = 200;
+		// the order is based on running statistics, which only change slowly,
+		// so there is no need to plan it at every evaluation.
+		if (--compiled.mUntilPlan[node] > 0) {
+			return compiled.mLeftFirst[node];
+		}
+		compiled.mUntilPlan[node] = PLAN_INTERVAL;
+		compiled.mLeftFirst[node] = plan(compiled, node,
+				(BinaryLogicOperator) expression.getOperator());
+		return compiled.mLeftFirst[node];
+	}
 
-		float leftFirstCost, rightFirstCost;
-		// check which evaluation cost is likely to be cheaper
-		switch ((BinaryLogicOperator) expression.getOperator()) {
-		case AND:
-			leftFirstCost = leftEvaluationCost + pLeftTrue
-					* rightEvaluationCost;
-			rightFirstCost = rightEvaluationCost + pRightTrue
-					* leftEvaluationCost;
-			return leftFirstCost <= rightFirstCost;
-		case OR:
-			leftFirstCost = leftEvaluationCost + (1 - pLeftTrue)
-					* rightEvaluationCost;
-			rightFirstCost = rightEvaluationCost + (1 - pRightTrue)
-					* leftEvaluationCost;
-			return leftFirstCost <= rightFirstCost;
-		}
-		// check which evaluation is likely to cause the other to sleep/defer
-		switch ((BinaryLogicOperator) expression.getOperator()) {
-		case AND:
+	private boolean plan(CompiledExpression compiled, int node,
+			BinaryLogicOperator operator) {
+		NodeStatistics left = compiled.mStatistics[compiled.mLefts[node]];
+		NodeStatistics right = compiled.mStatistics[compiled.mRights[node]];
 
-			leftFirstCost = leftSenseCost + (1 - pLeftTrue) * rightSenseCost;
+		// a child that was never computed (e.g. because it was always short
+		// circuited) goes first, so that we learn what it costs
+		if (!left.hasSamples()) {
+			return true;
+		} else if (!right.hasSamples()) {
+			return false;
+		}
 
-			rightFirstCost = rightEvaluationCost + pRightTrue
-					* leftEvaluationCost;
-			return leftFirstCost <= rightFirstCost;
+		// the chance that a child results in a value that short circuits the
+		// operator
+		double pLeftDecisive;
+		double pRightDecisive;
+		switch (operator) {
+		case AND:
+			pLeftDecisive = left.getFalseRatio();
+			pRightDecisive = right.getFalseRatio();
+			break;
 		case OR:
-			leftFirstCost = leftEvaluationCost + (1 - pLeftTrue)
-					* rightEvaluationCost;
-			rightFirstCost = rightEvaluationCost + (1 - pRightTrue)
-					* leftEvaluationCost;
-			return leftFirstCost <= rightFirstCost;
+			pLeftDecisive = left.getTrueRatio();
+			pRightDecisive = right.getTrueRatio();
+			break;
+		default:
+			return true;
 		}
 
-		return true;
+		// the expected cost of evaluating the logic expression. The cost of a
+		// child includes fetching the values of its sensors.
+		double leftFirstCost = left.getEvaluationTime() + (1 - pLeftDecisive)
+				* right.getEvaluationTime();
+		double rightFirstCost = right.getEvaluationTime()
+				+ (1 - pRightDecisive) * left.getEvaluationTime();
+
+		// the expected time until the next evaluation. If the first child
+		// short circuits, its result determines how long we defer (and how
+		// long the sensors of the other child can sleep), otherwise the child
+		// that expires first does.
+		double minDefer = Math.min(left.getDefer(), right.getDefer());
+		double leftFirstDefer = pLeftDecisive * left.getDefer()
+				+ (1 - pLeftDecisive) * minDefer;
+		double rightFirstDefer = pRightDecisive * right.getDefer()
+				+ (1 - pRightDecisive) * minDefer;
+
+		// minimize the evaluation cost per unit of time
+		return leftFirstCost / Math.max(1, leftFirstDefer) <= rightFirstCost
+				/ Math.max(1, rightFirstDefer);
 	}
 
-	private Result applyLogic(String id, LogicExpression expression, long now)
+	private Result applyLogic(CompiledExpression compiled, int node, long now)
 			throws SwanException {
-		boolean leftFirst = leftFirst(id, expression, now);
+		LogicExpression expression = (LogicExpression) compiled.mExpressions[node];
+		boolean leftFirst = leftFirst(compiled, node, now);
 
-		Expression firstExpression = leftFirst ? expression.getLeft()
-				: expression.getRight();
-		Expression lastExpression = !leftFirst ? expression.getLeft()
-				: expression.getRight();
-		String firstSuffix = leftFirst ? Expression.LEFT_SUFFIX
-				: Expression.RIGHT_SUFFIX;
-		String lastSuffix = !leftFirst ? Expression.LEFT_SUFFIX
-				: Expression.RIGHT_SUFFIX;
+		int first = leftFirst ? compiled.mLefts[node] : compiled.mRights[node];
+		int last = leftFirst ? compiled.mRights[node] : compiled.mLefts[node];
 
-		Result first = evaluate(id + firstSuffix, firstExpression, now);
+		Result firstResult = evaluate(compiled, first, now);
 
-		if (shortcut(expression, first)) {
+		if (shortcut(expression, firstResult)) {
 			// apply the sleep and be ready to last
-			if (first.isDeferUntilGuaranteed()) {
-				sleepAndBeReady(id + lastSuffix, lastExpression,
-						first.getDeferUntil());
+			if (firstResult.isDeferUntilGuaranteed()) {
+				sleepAndBeReady(compiled, last, firstResult.getDeferUntil());
 			}
 			// put line below in the above if statement if we want to take the
 			// risk of evaluating the other part of the expression. This can
 			// potentially lead to a sleep and be ready on the current part of
 			// the expression.
-			return first;
+			return firstResult;
 		}
-		Result last = evaluate(id + lastSuffix, lastExpression, now);
+		Result lastResult = evaluate(compiled, last, now);
 
-		if (shortcut(expression, last)) {
-			if (last.isDeferUntilGuaranteed()) {
-				sleepAndBeReady(id + firstSuffix, firstExpression,
-						last.getDeferUntil());
+		if (shortcut(expression, lastResult)) {
+			if (lastResult.isDeferUntilGuaranteed()) {
+				sleepAndBeReady(compiled, first, lastResult.getDeferUntil());
 			}
-			return last;
+			return lastResult;
 		}
 
-		Result result = new Result(now, expression.getOperator().operate(
-				first.getTriState(), last.getTriState()));
+		Result result = ((MutableResult) compiled.mSlots[node]).set(now,
+				expression.getOperator().operate(firstResult.getTriState(),
+						lastResult.getTriState()));
 
-		result.setDeferUntil(Math.min(first.getDeferUntil(),
-				last.getDeferUntil()));
-		result.setDeferUntilGuaranteed(first.isDeferUntilGuaranteed()
-				&& last.isDeferUntilGuaranteed());
+		result.setDeferUntil(Math.min(firstResult.getDeferUntil(),
+				lastResult.getDeferUntil()));
+		result.setDeferUntilGuaranteed(firstResult.isDeferUntilGuaranteed()
+				&& lastResult.isDeferUntilGuaranteed());
 		return result;
 	}
 
 	@SuppressWarnings("rawtypes")
-	private Result doCompare(String id, ComparisonExpression expression,
-			long now) throws SwanException {
-		Result right = evaluate(id + Expression.RIGHT_SUFFIX,
-				expression.getRight(), now);
-
-		if (expression.getLeft() instanceof SensorValueExpression
-				&& ((SensorValueExpression) expression.getLeft()).getEntity()
-						.equals("time")) {
+	private Result doCompare(CompiledExpression compiled, int node, long now)
+			throws SwanException {
+		ComparisonExpression expression = (ComparisonExpression) compiled.mExpressions[node];
+		ComparatorResult comparatorResult = (ComparatorResult) compiled.mSlots[node];
+		comparatorResult.reset(now);
+		Result right = evaluate(compiled, compiled.mRights[node], now);
+
+		if (compiled.mKinds[compiled.mLefts[node]] == CompiledExpression.TIME) {
 			if (right.getValues().length == 0) {
 				Log.d(TAG, "No data for: " + expression);
-				Result result = new Result(now, TriState.UNDEFINED);
-				result.setDeferUntil(Long.MAX_VALUE);
-				return result;
+				comparatorResult.setDeferUntil(Long.MAX_VALUE);
+				return comparatorResult;
 			}
 			return TimeSensor.determineValue(now,
 					((SensorValueExpression) expression.getLeft())
@@ -596,23 +885,18 @@ public class EvaluationManager {
 					(Comparable) right.getValues()[0].getValue());
 		}
 
-		Result left = evaluate(id + Expression.LEFT_SUFFIX,
-				expression.getLeft(), now);
+		Result left = evaluate(compiled, compiled.mLefts[node], now);
 
 		if (left.getValues().length == 0 || right.getValues().length == 0) {
 			Log.d(TAG, "No data for: " + expression);
-			Result result = new Result(now, TriState.UNDEFINED);
-			result.setDeferUntil(Long.MAX_VALUE);
-			result.setDeferUntilGuaranteed(false);
-			return result;
+			comparatorResult.setDeferUntil(Long.MAX_VALUE);
+			comparatorResult.setDeferUntilGuaranteed(false);
+			return comparatorResult;
 		}
 
 		// in here we should terminate as quickly as possible, but get the
 		// highest deferUntil, therefore start from recent to old
 		// assume left and right are sorted with most recent one first
-		ComparatorResult comparatorResult = new ComparatorResult(now,
-				expression.getLeft().getHistoryReductionMode(), expression
-						.getRight().getHistoryReductionMode());
 		// combination ANY, ANY has a tradeoff. We can terminate evaluation as
 		// soon as we find a combination that results in true, BUT if we
 		// continue we might find a longer deferUntil
@@ -639,43 +923,48 @@ public class EvaluationManager {
 
 		// find out how long this result will remain valid and defer
 		// evaluation to that moment
-		DeferUntilResult leftDefer = remainsValidUntil(expression.getLeft(),
+		DeferUntilResult defer = remainsValidUntil(expression.getLeft(),
 				left.getValues()[l].getTimestamp(), left.getOldestTimestamp(),
 				expression.getComparator(), comparatorResult.getTriState(),
-				true);
-		DeferUntilResult rightDefer = remainsValidUntil(expression.getRight(),
+				true, compiled.mDeferUntil);
+		long leftDeferUntil = defer.deferUntil;
+		boolean leftGuaranteed = defer.guaranteed;
+		defer = remainsValidUntil(expression.getRight(),
 				right.getValues()[r].getTimestamp(),
 				right.getOldestTimestamp(), expression.getComparator(),
-				comparatorResult.getTriState(), false);
+				comparatorResult.getTriState(), false, compiled.mDeferUntil);
 
-		comparatorResult.setDeferUntilGuaranteed(leftDefer.guaranteed
-				&& rightDefer.guaranteed);
-		comparatorResult.setDeferUntil(Math.min(leftDefer.deferUntil,
-				leftDefer.deferUntil));
+		comparatorResult.setDeferUntilGuaranteed(leftGuaranteed
+				&& defer.guaranteed);
+		comparatorResult.setDeferUntil(Math.min(leftDeferUntil,
+				defer.deferUntil));
 		return comparatorResult;
 	}
 
-	private class DeferUntilResult {
+	/**
+	 * How long a comparison remains valid. Reused for every comparison of an
+	 * expression, rather than allocated for every call.
+	 */
+	static class DeferUntilResult {
 		public long deferUntil;
 		public boolean guaranteed;
 
-		public DeferUntilResult(long deferUntil, boolean guaranteed) {
+		DeferUntilResult set(long deferUntil, boolean guaranteed) {
 			this.deferUntil = deferUntil;
 			this.guaranteed = guaranteed;
+			return this;
 		}
 
 	}
 
-	private Result doMath(String id, MathValueExpression expression, long now)
+	private Result doMath(CompiledExpression compiled, int node, long now)
 			throws SwanException {
-		Result left = evaluate(id + Expression.LEFT_SUFFIX,
-				expression.getLeft(), now);
-		Result right = evaluate(id + Expression.RIGHT_SUFFIX,
-				expression.getRight(), now);
+		MathValueExpression expression = (MathValueExpression) compiled.mExpressions[node];
+		Result left = evaluate(compiled, compiled.mLefts[node], now);
+		Result right = evaluate(compiled, compiled.mRights[node], now);
+		MutableResult slot = (MutableResult) compiled.mSlots[node];
 		if (left.getValues().length == 0 || right.getValues().length == 0) {
-			Result result = new Result(left.getValues(),
-					left.getOldestTimestamp());
-			return result;
+			return slot.set(left.getValues(), left.getOldestTimestamp());
 		} else if (left.getValues().length == 1
 				|| right.getValues().length == 1) {
 			TimestampedValue[] values = new TimestampedValue[left.getValues().length
@@ -687,7 +976,7 @@ public class EvaluationManager {
 							expression.getOperator(), right.getValues()[j]);
 				}
 			}
-			Result result = new Result(values, Math.min(
+			Result result = slot.set(values, Math.min(
 					left.getOldestTimestamp(), right.getOldestTimestamp()));
 			result.setDeferUntil(Math.min(left.getDeferUntil(),
 					right.getDeferUntil()));
@@ -702,24 +991,66 @@ public class EvaluationManager {
 		}
 	}
 
-	private Result getFromSensor(String id, SensorValueExpression expression,
+	/**
+	 * Lets the sensor reduce the history, so that only the reduced value is
+	 * sent to the engine.
+	 * 
+	 * @return the result, or null if the history has to be reduced here
+	 */
+	private Result getReducedFromSensor(SensorBinding binding,
+			MutableResult slot, HistoryReductionMode mode, long historyLength,
+			long now) throws RemoteException {
+		List<TimestampedValue> reduced = binding.getReducedValues(mode, now);
+		if (reduced == null) {
+			return null;
+		}
+		if (reduced.size() == 0) {
+			Result result = slot.set(MutableResult.NO_VALUES, 0);
+			result.setDeferUntil(now + 1000);
+			result.setDeferUntilGuaranteed(false);
+			return result;
+		}
+		long oldest = reduced.get(1).getTimestamp();
+		Result result = slot.set(new TimestampedValue[] { reduced.get(0) },
+				oldest);
+		// the reduced value may change when the oldest value leaves the
+		// history
+		result.setDeferUntil(oldest + historyLength);
+		result.setDeferUntilGuaranteed(false);
+		return result;
+	}
+
+	private Result getFromSensor(CompiledExpression compiled, int node,
 			long now) {
-		if (mSensors.get(id) == null) {
+		SensorValueExpression expression = (SensorValueExpression) compiled.mExpressions[node];
+		String id = compiled.mIds[node];
+		SensorBinding binding = compiled.mBindings.get(node);
+		MutableResult slot = (MutableResult) compiled.mSlots[node];
+		if (binding == null || binding.getSensor() == null) {
 			Log.d(TAG, "not yet bound for: " + id + ", " + expression);
-			Result result = new Result(new TimestampedValue[] {}, 0);
+			Result result = slot.set(MutableResult.NO_VALUES, 0);
 			// TODO make this a constant (configurable?)
 			result.setDeferUntil(System.currentTimeMillis() + 300);
 			result.setDeferUntilGuaranteed(false);
 			return result;
 		}
 		try {
-			List<TimestampedValue> values = mSensors.get(id).getValues(id, now,
-					expression.getHistoryLength());
+			HistoryReductionMode mode = expression.getHistoryReductionMode();
+			if (expression.getHistoryLength() > 0
+					&& mode != HistoryReductionMode.ALL
+					&& mode != HistoryReductionMode.ANY) {
+				Result result = getReducedFromSensor(binding, slot, mode,
+						expression.getHistoryLength(), now);
+				if (result != null) {
+					return result;
+				}
+			}
+			List<TimestampedValue> values = binding.getValues(now);
 
 			// TODO if values is empty, should we not just defer until forever?
 			// And can values be null at all?
 			if (values == null || values.size() == 0) {
-				Result result = new Result(new TimestampedValue[] {}, 0);
+				Result result = slot.set(MutableResult.NO_VALUES, 0);
 				// TODO make this a constant (configurable?)
 				result.setDeferUntil(now + 1000);
 				result.setDeferUntilGuaranteed(false);
@@ -729,7 +1060,7 @@ public class EvaluationManager {
 			TimestampedValue[] reduced = TimestampedValue.applyMode(values,
 					expression.getHistoryReductionMode());
 
-			Result result = new Result(reduced, values.get(values.size() - 1)
+			Result result = slot.set(reduced, values.get(values.size() - 1)
 					.getTimestamp());
 			if (expression.getHistoryLength() == 0 || reduced == null
 					|| reduced.length == 0) {
@@ -753,29 +1084,29 @@ public class EvaluationManager {
 
 	private DeferUntilResult remainsValidUntil(ValueExpression expression,
 			long determiningValueTimestamp, long oldestValueTimestamp,
-			Comparator comparator, TriState triState, boolean left) {
+			Comparator comparator, TriState triState, boolean left,
+			DeferUntilResult result) {
 		if (expression instanceof MathValueExpression) {
 			// math value is valid as long both of its children are valid
-			DeferUntilResult leftResult = remainsValidUntil(
-					((MathValueExpression) expression).getLeft(),
+			remainsValidUntil(((MathValueExpression) expression).getLeft(),
 					determiningValueTimestamp, oldestValueTimestamp,
-					comparator, triState, left);
-			DeferUntilResult rightResult = remainsValidUntil(
-					((MathValueExpression) expression).getRight(),
+					comparator, triState, left, result);
+			long deferUntil = result.deferUntil;
+			boolean guaranteed = result.guaranteed;
+			remainsValidUntil(((MathValueExpression) expression).getRight(),
 					determiningValueTimestamp, oldestValueTimestamp,
-					comparator, triState, left);
-			return new DeferUntilResult(Math.min(leftResult.deferUntil,
-					rightResult.deferUntil), leftResult.guaranteed
-					&& rightResult.guaranteed);
+					comparator, triState, left, result);
+			return result.set(Math.min(deferUntil, result.deferUntil),
+					guaranteed && result.guaranteed);
 		} else if (expression instanceof ConstantValueExpression) {
-			return new DeferUntilResult(Long.MAX_VALUE, true);
+			return result.set(Long.MAX_VALUE, true);
 		} else if (expression instanceof SensorValueExpression) {
 			HistoryReductionMode mode = ((SensorValueExpression) expression)
 					.getHistoryReductionMode();
 			long historyLength = ((SensorValueExpression) expression)
 					.getHistoryLength();
 			if (historyLength == 0) {
-				return new DeferUntilResult(Long.MAX_VALUE, false);
+				return result.set(Long.MAX_VALUE, false);
 			}
 
 			long deferTime = determiningValueTimestamp + historyLength;
@@ -787,21 +1118,21 @@ public class EvaluationManager {
 					|| comparator == Comparator.STRING_CONTAINS) {
 				if (triState == TriState.TRUE) {
 					if (mode == HistoryReductionMode.ANY) {
-						return new DeferUntilResult(deferTime, true);
+						return result.set(deferTime, true);
 					}
 				} else if (triState == TriState.FALSE) {
 					if (mode == HistoryReductionMode.ALL) {
-						return new DeferUntilResult(deferTime, true);
+						return result.set(deferTime, true);
 					}
 				}
 			} else if (comparator == Comparator.NOT_EQUALS) {
 				if (triState == TriState.TRUE) {
 					if (mode == HistoryReductionMode.ALL) {
-						return new DeferUntilResult(deferTime, true);
+						return result.set(deferTime, true);
 					}
 				} else if (triState == TriState.FALSE) {
 					if (mode == HistoryReductionMode.ANY) {
-						return new DeferUntilResult(deferTime, true);
+						return result.set(deferTime, true);
 					}
 				}
 			}
@@ -813,12 +1144,12 @@ public class EvaluationManager {
 					if (triState == TriState.TRUE) {
 						if (mode == HistoryReductionMode.MAX
 								|| mode == HistoryReductionMode.ANY) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					} else if (triState == TriState.FALSE) {
 						if (mode == HistoryReductionMode.MIN
 								|| mode == HistoryReductionMode.ALL) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					}
 				} else if (comparator == Comparator.LESS_THAN
@@ -826,12 +1157,12 @@ public class EvaluationManager {
 					if (triState == TriState.TRUE) {
 						if (mode == HistoryReductionMode.MIN
 								|| mode == HistoryReductionMode.ANY) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					} else if (triState == TriState.FALSE) {
 						if (mode == HistoryReductionMode.MAX
 								|| mode == HistoryReductionMode.ALL) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					}
 				}
@@ -841,12 +1172,12 @@ public class EvaluationManager {
 					if (triState == TriState.TRUE) {
 						if (mode == HistoryReductionMode.MIN
 								|| mode == HistoryReductionMode.ANY) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					} else if (triState == TriState.FALSE) {
 						if (mode == HistoryReductionMode.MAX
 								|| mode == HistoryReductionMode.ALL) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					}
 				} else if (comparator == Comparator.LESS_THAN
@@ -854,57 +1185,50 @@ public class EvaluationManager {
 					if (triState == TriState.TRUE) {
 						if (mode == HistoryReductionMode.MAX
 								|| mode == HistoryReductionMode.ANY) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					} else if (triState == TriState.FALSE) {
 						if (mode == HistoryReductionMode.MIN
 								|| mode == HistoryReductionMode.ALL) {
-							return new DeferUntilResult(deferTime, true);
+							return result.set(deferTime, true);
 						}
 					}
 				}
 			}
 
 			// otherwise we defer based on the oldest timestamp
-			return new DeferUntilResult(oldestValueTimestamp + historyLength,
+			return result.set(oldestValueTimestamp + historyLength,
 					false);
 		}
-		return new DeferUntilResult(0, false); // should not happen!
+		return result.set(0, false); // should not happen!
 	}
 
-	private void sleepAndBeReady(final String id, final Expression expression,
-			final long readyTime) {
-		if (expression instanceof LogicExpression) {
-			sleepAndBeReady(id + Expression.LEFT_SUFFIX,
-					((LogicExpression) expression).getLeft(), readyTime);
-			sleepAndBeReady(id + Expression.RIGHT_SUFFIX,
-					((LogicExpression) expression).getRight(), readyTime);
-		} else if (expression instanceof ComparisonExpression) {
-			sleepAndBeReady(id + Expression.LEFT_SUFFIX,
-					((ComparisonExpression) expression).getLeft(), readyTime);
-			sleepAndBeReady(id + Expression.RIGHT_SUFFIX,
-					((ComparisonExpression) expression).getRight(), readyTime);
-		} else if (expression instanceof MathValueExpression) {
-			sleepAndBeReady(id + Expression.LEFT_SUFFIX,
-					((MathValueExpression) expression).getLeft(), readyTime);
-			sleepAndBeReady(id + Expression.RIGHT_SUFFIX,
-					((MathValueExpression) expression).getRight(), readyTime);
-		} else if (expression instanceof SensorValueExpression) {
-			String location = expression.getLocation();
+	private void sleepAndBeReady(final CompiledExpression compiled,
+			final int node, final long readyTime) {
+		if (node == CompiledExpression.NONE) {
+			return;
+		}
+		switch (compiled.mKinds[node]) {
+		case CompiledExpression.LOGIC:
+		case CompiledExpression.COMPARISON:
+		case CompiledExpression.MATH:
+			sleepAndBeReady(compiled, compiled.mLefts[node], readyTime);
+			sleepAndBeReady(compiled, compiled.mRights[node], readyTime);
+			break;
+		case CompiledExpression.SENSOR:
 			// do the real work here, let the sensor stop produce values until
-			// ready time.
+			// ready time. Remote nodes and time are not sensed locally.
 			long sensorStartUpTime = 0;
-			if (!location.equals(Expression.LOCATION_SELF)
-					&& !location.equals(Expression.LOCATION_INDEPENDENT)) {
-				sensorStartUpTime = START_UP_TIME_REMOTE_SENSOR;
-			} else {
-				try {
-					mSensors.get(id).getStartUpTime(id);
-				} catch (RemoteException e) {
-					Log.d(TAG,
-							"Got unexpected remote exception while retrieving startup time",
-							e);
+			SensorBinding binding = compiled.mBindings.get(node);
+			try {
+				if (binding != null && binding.getSensor() != null) {
+					sensorStartUpTime = binding.getSensor().getStartUpTime(
+							binding.getId());
 				}
+			} catch (RemoteException e) {
+				Log.d(TAG,
+						"Got unexpected remote exception while retrieving startup time",
+						e);
 			}
 			final long sensorReadyTime = readyTime - sensorStartUpTime;
 
@@ -912,30 +1236,84 @@ public class EvaluationManager {
 				return;
 			}
 
-			unbindFromSensor(id);
-
-			// this should probably be replaced by an android alarm.
-			new Thread("sleepAndBeReady-" + id) {
-				public void run() {
-					try {
-						sleep(sensorReadyTime - System.currentTimeMillis());
-					} catch (InterruptedException e) {
-						// should not happen
-					}
-					try {
-						bindToSensor(id, (SensorValueExpression) expression,
-								false);
-					} catch (SensorConfigurationException e) {
-						Log.d(TAG, "This should not happen!", e);
-					} catch (SensorSetupFailedException e) {
-						Log.d(TAG,
-								"Failed to re bind after sleep and be ready", e);
+			synchronized (compiled) {
+				if (compiled.mStopped) {
+					return;
+				}
+				ScheduledFuture<?> wakeUp = compiled.mWakeUps[node];
+				if (wakeUp != null) {
+					// already suspended, let it sleep longer if the wake up
+					// didn't start yet
+					if (wakeUp.getDelay(TimeUnit.MILLISECONDS) >= sensorReadyTime
+							- System.currentTimeMillis()
+							|| !wakeUp.cancel(false)) {
+						return;
 					}
+				} else if (unbindFromSensor(compiled, node)) {
+					compiled.mSuspendedAt[node] = System.currentTimeMillis();
+					mSuspendedSensors.incrementAndGet();
+				} else {
+					// other leafs keep the sensor running, nothing is saved
+					compiled.mSuspendedAt[node] = 0;
 				}
-			}.start();
+				compiled.mWakeUps[node] = mWakeUpExecutor.schedule(
+						new Runnable() {
+							public void run() {
+								wakeUp(compiled, node);
+							}
+						}, sensorReadyTime - System.currentTimeMillis(),
+						TimeUnit.MILLISECONDS);
+			}
+			break;
+		}
+	}
+
+	private void wakeUp(CompiledExpression compiled, int node) {
+		synchronized (compiled) {
+			if (compiled.mStopped || compiled.mWakeUps[node] == null) {
+				// the expression was stopped in the mean time
+				return;
+			}
+			compiled.mWakeUps[node] = null;
+			resumed(compiled, node);
+			try {
+				bindToSensor(compiled, node, false);
+			} catch (SensorConfigurationException e) {
+				Log.d(TAG, "This should not happen!", e);
+			} catch (SensorSetupFailedException e) {
+				Log.d(TAG, "Failed to re bind after sleep and be ready", e);
+			}
 		}
 	}
 
+	/**
+	 * Cancels the pending wake up of a suspended sensor node.
+	 * 
+	 * @return whether the node was suspended
+	 */
+	private boolean cancelWakeUp(CompiledExpression compiled, int node) {
+		synchronized (compiled) {
+			ScheduledFuture<?> wakeUp = compiled.mWakeUps[node];
+			if (wakeUp == null) {
+				return false;
+			}
+			compiled.mWakeUps[node] = null;
+			wakeUp.cancel(false);
+			resumed(compiled, node);
+			return true;
+		}
+	}
+
+	private void resumed(CompiledExpression compiled, int node) {
+		if (compiled.mSuspendedAt[node] == 0) {
+			// the suspend didn't release the sensor
+			return;
+		}
+		mSuspendedSensors.decrementAndGet();
+		mSensingTimeSaved.addAndGet(System.currentTimeMillis()
+				- compiled.mSuspendedAt[node]);
+	}
+
 	private boolean shortcut(LogicExpression expression, Result first) {
 		// Can we short circuit and don't evaluate the last expression?
 		// FALSE && ?? -> FALSE
@@ -1200,17 +1578,23 @@ public class EvaluationManager {
 
 	public Bundle[] activeSensorsAsBundle() {
 		ArrayList<Bundle> sensors = new ArrayList<Bundle>();
-		for (String key : mSensors.keySet()) {
+		List<Sensor> proxies = new ArrayList<Sensor>();
+		for (SensorBinding binding : mBindings.values()) {
+			if (binding.getSensor() != null) {
+				proxies.add(binding.getSensor());
+			}
+		}
+		for (Sensor sensor : proxies) {
 			try {
+				Bundle info = sensor.getInfo();
 				boolean dup = false;
 				for (Bundle b : sensors) {
-					if (b.getString("name").equals(
-							mSensors.get(key).getInfo().getString("name"))) {
+					if (b.getString("name").equals(info.getString("name"))) {
 						dup = true;
 					}
 				}
 				if (!dup) {
-					sensors.add(mSensors.get(key).getInfo());
+					sensors.add(info);
 				}
 			} catch (RemoteException e) {
 				e.printStackTrace();
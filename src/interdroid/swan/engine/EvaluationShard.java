@@ -0,0 +1,334 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.QosClass;
+import interdroid.swan.SwanException;
+import interdroid.swan.swansong.Result;
+
+import java.util.List;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * An evaluation shard owns a queue of expressions and a worker thread that
+ * evaluates them. Expressions are assigned to a shard based on their root id,
+ * so all evaluations of a single expression happen in order on the same
+ * thread, while a slow sensor only delays the expressions in its own shard.
+ * 
+ * Each {@link QosClass} has its own queue. Due expressions of a higher class
+ * go first, unless a due expression of a lower class is later than the
+ * latency bound of its class.
+ */
+public class EvaluationShard extends Thread {
+
+	private static final String TAG = "EvaluationShard";
+
+	private final int mIndex;
+	private final EvaluationEngineService mService;
+	private final EvaluationManager mEvaluationManager;
+
+	/** The queues, indexed by the ordinal of their QosClass. */
+	private final ExpressionQueue[] mEvaluationQueues = new ExpressionQueue[QosClass
+			.values().length];
+
+	private final NotificationCoalescer mCoalescer;
+
+	private final OverloadController mOverloadController;
+
+	private long mEvaluations; // number of evaluations
+	private long mTotalEvaluationTime; // total time spent on evaluations so far
+	private long mTotalEvaluationDelay; // total delay
+	private long mNumEvaluationsDelay; // number of evaluations with delay
+	private long mMaxEvaluationDelay;
+	// node results reused and recomputed by the evaluations
+	private long mResultHits;
+	private long mResultMisses;
+	// evaluation delay statistics per QosClass
+	private final long[] mClassEvaluationDelay = new long[QosClass.values().length];
+	private final long[] mClassEvaluationsDelay = new long[QosClass.values().length];
+	private final long[] mClassMaxEvaluationDelay = new long[QosClass.values().length];
+
+	public EvaluationShard(int index, EvaluationEngineService service,
+			EvaluationManager evaluationManager, long coalescingWindow,
+			OverloadController overloadController) {
+		super("EvaluationShard-" + index);
+		mIndex = index;
+		mService = service;
+		mEvaluationManager = evaluationManager;
+		mCoalescer = new NotificationCoalescer(coalescingWindow);
+		mOverloadController = overloadController;
+		for (int i = 0; i < mEvaluationQueues.length; i++) {
+			mEvaluationQueues[i] = new ExpressionQueue();
+		}
+	}
+
+	public int getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * @return the degradation level of this shard.
+	 */
+	public synchronized int getDegradationLevel() {
+		return mOverloadController.getLevel();
+	}
+
+	/**
+	 * Adds a newly registered expression to this shard and wakes up the
+	 * worker.
+	 *
+	 * @param queued
+	 *            the expression to add
+	 */
+	public void add(QueuedExpression queued) {
+		synchronized (this) {
+			queued.setShard(mIndex);
+			queueFor(queued).add(queued);
+			notify();
+		}
+	}
+
+	/**
+	 * Removes an expression from this shard.
+	 *
+	 * @param queued
+	 *            the expression to remove
+	 */
+	public void remove(QueuedExpression queued) {
+		synchronized (this) {
+			queueFor(queued).remove(queued);
+			// do we really need to notify the evaluation thread here?
+			notify();
+		}
+	}
+
+	/**
+	 * Schedules the expression for evaluation because new data arrived for
+	 * the given leaf id. The cached results for the leaf are invalidated just
+	 * before that evaluation, so that a burst of notifications results in a
+	 * single evaluation.
+	 *
+	 * @param queued
+	 *            the expression the leaf belongs to
+	 * @param id
+	 *            the leaf id for which new data arrived
+	 */
+	public void reschedule(QueuedExpression queued, String id) {
+		synchronized (this) {
+			if (mCoalescer.coalesce(queued, id, System.currentTimeMillis())) {
+				return;
+			}
+			// update defer until and move it to its new position in the
+			// queue, then notify the evaluation thread.
+			queueFor(queued).update(queued);
+			notifyAll();
+		}
+	}
+
+	private ExpressionQueue queueFor(QueuedExpression queued) {
+		return mEvaluationQueues[queued.getQosClass().ordinal()];
+	}
+
+	/**
+	 * Selects the expression to evaluate next. This is the due expression of
+	 * the highest class, unless the due expression of a lower class is later
+	 * than the latency bound of its class, and later relative to its bound
+	 * than the other due expressions. If no expression is due, it is the
+	 * expression that is due first.
+	 * 
+	 * @return the next expression, or null if all queues are empty
+	 */
+	private synchronized QueuedExpression next(long now) {
+		QueuedExpression next = null;
+		double nextLateness = 0;
+		QueuedExpression first = null;
+		// the queues are ordered from the highest to the lowest class
+		for (ExpressionQueue queue : mEvaluationQueues) {
+			QueuedExpression head = queue.peek();
+			if (head == null) {
+				continue;
+			}
+			long deferUntil = head.getDeferUntil();
+			if (deferUntil > now) {
+				if (first == null || deferUntil < first.getDeferUntil()) {
+					first = head;
+				}
+				continue;
+			}
+			double lateness = deferUntil == 0 ? 0 : (now - deferUntil)
+					/ (double) head.getQosClass().getLatencyBound();
+			if (next == null || (lateness > 1 && lateness > nextLateness)) {
+				next = head;
+				nextLateness = lateness;
+			}
+		}
+		return next != null ? next : first;
+	}
+
+	public void run() {
+		while (!interrupted()) {
+			QueuedExpression head = next(System.currentTimeMillis());
+			if (head == null) {
+				Log.d(TAG, "Nothing to evaluate in shard " + mIndex + "!");
+				synchronized (this) {
+					try {
+						if (next(System.currentTimeMillis()) == null) {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} else {
+				long deferUntil = head.getDeferUntil();
+				if (deferUntil <= System.currentTimeMillis()) {
+					// evaluate now
+					try {
+						// evaluation delay is the time in ms between when
+						// the expression should be evaluated (as indicated
+						// by deferuntil) and when it is really evaluated.
+						// Normally the evaluation delay is neglectable, but
+						// when the load is high, this can become
+						// significant.
+						long evaluationDelay;
+						if (deferUntil != 0) {
+							evaluationDelay = System.currentTimeMillis()
+									- deferUntil;
+							// code below for debugging purposes
+							if (evaluationDelay > 3600000) {
+								throw new RuntimeException(
+										"Weird evaluation delay: "
+												+ evaluationDelay + ", "
+												+ deferUntil);
+							}
+						} else {
+							evaluationDelay = 0;
+						}
+
+						long start = System.currentTimeMillis();
+
+						synchronized (this) {
+							List<String> notified = head.startEvaluation(start);
+							for (String id : notified) {
+								mEvaluationManager.clearCacheFor(id);
+							}
+						}
+
+						Result result = mEvaluationManager.evaluate(
+								head.getCompiled(), System.currentTimeMillis());
+
+						long end = System.currentTimeMillis();
+
+						// update with statistics: evaluationTime and
+						// evaluationDelay
+						head.evaluated((end - start), evaluationDelay);
+						boolean degradationChanged = evaluated(
+								head.getQosClass(), (end - start),
+								evaluationDelay, end, head.getCompiled());
+						if (degradationChanged) {
+							Log.d(TAG, "Shard " + mIndex
+									+ " changed to degradation level "
+									+ getDegradationLevel());
+							mService.degradationChanged();
+						}
+
+						// the result copy of the expression is read by
+						// reschedule with the lock held, so it is updated
+						// with the lock held too. Then move the expression to
+						// its new position in the queue, unless it has been
+						// unregistered in the mean time
+						boolean changed;
+						synchronized (this) {
+							changed = head.update(result);
+							head.setDegradationDelay(mOverloadController
+									.getDelay(head));
+							queueFor(head).update(head);
+						}
+						if (changed) {
+							Log.d(TAG, "Result: " + result);
+							mService.sendUpdate(head, result);
+						}
+					} catch (SwanException e) {
+						Log.d(TAG, "Failed to evaluate", e);
+					}
+				} else {
+					synchronized (this) {
+						try {
+							long waitTime = Math.max(1, head.getDeferUntil()
+									- System.currentTimeMillis());
+							wait(waitTime);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the statistics and the overload controller.
+	 * 
+	 * @return whether the degradation level changed
+	 */
+	private synchronized boolean evaluated(QosClass qosClass,
+			long evaluationTime, long evaluationDelay, long end,
+			CompiledExpression compiled) {
+		mEvaluations += 1;
+		mTotalEvaluationTime += evaluationTime;
+		mResultHits += compiled.mResultHits;
+		mResultMisses += compiled.mResultMisses;
+		if (evaluationDelay != 0) {
+			mTotalEvaluationDelay += evaluationDelay;
+			mNumEvaluationsDelay += 1;
+			mMaxEvaluationDelay = Math.max(mMaxEvaluationDelay,
+					evaluationDelay);
+			int i = qosClass.ordinal();
+			mClassEvaluationDelay[i] += evaluationDelay;
+			mClassEvaluationsDelay[i] += 1;
+			mClassMaxEvaluationDelay[i] = Math.max(
+					mClassMaxEvaluationDelay[i], evaluationDelay);
+		}
+		if (!mOverloadController.evaluated(evaluationTime, evaluationDelay,
+				end)) {
+			return false;
+		}
+		mCoalescer.setScale(mOverloadController.getCoalescingScale());
+		return true;
+	}
+
+	/**
+	 * @return the statistics of this shard.
+	 */
+	public synchronized Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putInt("shard", mIndex);
+		int size = 0;
+		int parked = 0;
+		for (QosClass qosClass : QosClass.values()) {
+			int i = qosClass.ordinal();
+			size += mEvaluationQueues[i].size();
+			parked += mEvaluationQueues[i].parkedSize();
+			bundle.putInt("queue-size-" + qosClass, mEvaluationQueues[i].size());
+			bundle.putLong("avg-evaluation-delay-" + qosClass,
+					(mClassEvaluationDelay[i] / Math.max(
+							mClassEvaluationsDelay[i], 1)));
+			bundle.putLong("max-evaluation-delay-" + qosClass,
+					mClassMaxEvaluationDelay[i]);
+		}
+		bundle.putInt("queue-size", size);
+		bundle.putInt("parked", parked);
+		bundle.putLong("evaluations", mEvaluations);
+		bundle.putLong("avg-evaluation-time",
+				(mTotalEvaluationTime / Math.max(mEvaluations, 1)));
+		bundle.putLong("avg-evaluation-delay",
+				(mTotalEvaluationDelay / Math.max(mNumEvaluationsDelay, 1)));
+		bundle.putLong("max-evaluation-delay", mMaxEvaluationDelay);
+		bundle.putLong("result-hits", mResultHits);
+		bundle.putLong("result-misses", mResultMisses);
+		mCoalescer.addTo(bundle);
+		mOverloadController.addTo(bundle);
+		return bundle;
+	}
+
+}
@@ -0,0 +1,178 @@
+package interdroid.swan.engine;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A priority queue of expressions ordered by the time until which their
+ * evaluation can be deferred. Unlike {@link java.util.PriorityQueue}, every
+ * expression keeps its own index in the heap, so removing or rescheduling an
+ * expression is O(log n) instead of O(n). Expressions that are deferred
+ * forever are parked outside of the heap until they are rescheduled.
+ *
+ * This class is not thread safe, the evaluation shard that owns the queue
+ * synchronizes access to it.
+ */
+public class ExpressionQueue {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private QueuedExpression[] mHeap = new QueuedExpression[INITIAL_CAPACITY];
+	private int mSize;
+
+	/** Expressions that are deferred forever, they are never due. */
+	private final Set<QueuedExpression> mParked = new HashSet<QueuedExpression>();
+
+	/**
+	 * Adds an expression to the queue.
+	 *
+	 * @param queued
+	 *            the expression to add
+	 */
+	public void add(QueuedExpression queued) {
+		if (contains(queued)) {
+			update(queued);
+			return;
+		}
+		long key = queued.getDeferUntil();
+		if (key == Long.MAX_VALUE) {
+			mParked.add(queued);
+			return;
+		}
+		if (mSize == mHeap.length) {
+			QueuedExpression[] heap = new QueuedExpression[mHeap.length * 2];
+			System.arraycopy(mHeap, 0, heap, 0, mSize);
+			mHeap = heap;
+		}
+		queued.mQueueKey = key;
+		mHeap[mSize] = queued;
+		queued.mQueueIndex = mSize;
+		mSize++;
+		siftUp(mSize - 1);
+	}
+
+	/**
+	 * Removes an expression from the queue.
+	 *
+	 * @param queued
+	 *            the expression to remove
+	 * @return whether the expression was in the queue
+	 */
+	public boolean remove(QueuedExpression queued) {
+		int index = queued.mQueueIndex;
+		if (index < 0) {
+			return mParked.remove(queued);
+		}
+		mSize--;
+		QueuedExpression last = mHeap[mSize];
+		mHeap[mSize] = null;
+		queued.mQueueIndex = -1;
+		if (index != mSize) {
+			mHeap[index] = last;
+			last.mQueueIndex = index;
+			if (!siftUp(index)) {
+				siftDown(index);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves an expression to its new position after its defer until time
+	 * changed.
+	 *
+	 * @param queued
+	 *            the expression to reschedule
+	 * @return whether the expression was in the queue
+	 */
+	public boolean update(QueuedExpression queued) {
+		long key = queued.getDeferUntil();
+		int index = queued.mQueueIndex;
+		if (index < 0) {
+			if (key != Long.MAX_VALUE && mParked.remove(queued)) {
+				add(queued);
+				return true;
+			}
+			return mParked.contains(queued);
+		}
+		if (key == Long.MAX_VALUE) {
+			remove(queued);
+			mParked.add(queued);
+			return true;
+		}
+		queued.mQueueKey = key;
+		if (!siftUp(index)) {
+			siftDown(index);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the expression with the earliest defer until time, or null if
+	 *         no expression will ever be due.
+	 */
+	public QueuedExpression peek() {
+		return mHeap[0];
+	}
+
+	public boolean contains(QueuedExpression queued) {
+		return queued.mQueueIndex >= 0 || mParked.contains(queued);
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	/**
+	 * @return the total number of expressions, including parked ones.
+	 */
+	public int size() {
+		return mSize + mParked.size();
+	}
+
+	/**
+	 * @return the number of expressions that are deferred forever.
+	 */
+	public int parkedSize() {
+		return mParked.size();
+	}
+
+	private boolean siftUp(int index) {
+		QueuedExpression queued = mHeap[index];
+		int start = index;
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (mHeap[parent].mQueueKey <= queued.mQueueKey) {
+				break;
+			}
+			mHeap[index] = mHeap[parent];
+			mHeap[index].mQueueIndex = index;
+			index = parent;
+		}
+		mHeap[index] = queued;
+		queued.mQueueIndex = index;
+		return index != start;
+	}
+
+	private void siftDown(int index) {
+		QueuedExpression queued = mHeap[index];
+		int half = mSize >>> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < mSize
+					&& mHeap[right].mQueueKey < mHeap[child].mQueueKey) {
+				child = right;
+			}
+			if (queued.mQueueKey <= mHeap[child].mQueueKey) {
+				break;
+			}
+			mHeap[index] = mHeap[child];
+			mHeap[index].mQueueIndex = index;
+			index = child;
+		}
+		mHeap[index] = queued;
+		queued.mQueueIndex = index;
+	}
+
+}
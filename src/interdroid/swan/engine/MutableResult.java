@@ -0,0 +1,73 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.TimestampedValue;
+import interdroid.swan.swansong.TriState;
+
+/**
+ * A result that is overwritten at each computation of the node it belongs to,
+ * so that evaluation in steady state does not allocate results. A mutable
+ * result may only be read by the evaluation shard of its expression, until
+ * the node is computed again. Anything that keeps a result across
+ * evaluations has to copy it with {@link #copyFrom(Result)}.
+ */
+public class MutableResult extends Result {
+
+	private static final long serialVersionUID = 2305866203436564287L;
+
+	/** The values of a result without values, shared by all results. */
+	public static final TimestampedValue[] NO_VALUES = new TimestampedValue[0];
+
+	public MutableResult() {
+		super(0, TriState.UNDEFINED);
+	}
+
+	/**
+	 * Overwrites this result with a tri state. The defer until is reset to
+	 * forever and guaranteed, as for a new {@link Result}.
+	 *
+	 * @return this result
+	 */
+	public MutableResult set(long timestamp, TriState triState) {
+		mValues = null;
+		mOldestTimestamp = 0;
+		mTimestamp = timestamp;
+		mTriState = triState;
+		mDeferUntil = Long.MAX_VALUE;
+		mDeferGuaranteed = true;
+		return this;
+	}
+
+	/**
+	 * Overwrites this result with values. The defer until is reset to forever
+	 * and guaranteed, as for a new {@link Result}.
+	 *
+	 * @return this result
+	 */
+	public MutableResult set(TimestampedValue[] values, long oldestTimestamp) {
+		mValues = values;
+		mOldestTimestamp = oldestTimestamp;
+		mTimestamp = 0;
+		mTriState = null;
+		mDeferUntil = Long.MAX_VALUE;
+		mDeferGuaranteed = true;
+		return this;
+	}
+
+	/**
+	 * Overwrites this result with a copy of another result. The values array
+	 * is shared, values arrays are never modified.
+	 *
+	 * @return this result
+	 */
+	public MutableResult copyFrom(Result result) {
+		mValues = result.getValues();
+		mOldestTimestamp = result.getOldestTimestamp();
+		mTimestamp = result.getTimestamp();
+		mTriState = result.getTriState();
+		mDeferUntil = result.getDeferUntil();
+		mDeferGuaranteed = result.isDeferUntilGuaranteed();
+		return this;
+	}
+
+}
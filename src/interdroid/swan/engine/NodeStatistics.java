@@ -0,0 +1,113 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.TriState;
+
+/**
+ * Running statistics of a single node of a compiled expression, collected
+ * each time the node is computed. The averages are exponentially weighted, so
+ * that they follow changes in the behavior of sensors over time. The
+ * statistics are used to decide in which order the children of a logic node
+ * are evaluated.
+ *
+ * Instances are only used by the evaluation shard of the expression.
+ */
+public class NodeStatistics {
+
+	/** The weight of a new sample in the running averages. */
+	private static final double ALPHA = 0.1;
+
+	/**
+	 * Defer durations are capped, results that only change on new data would
+	 * otherwise dominate the average.
+	 */
+	private static final long MAX_DEFER = 60 * 60 * 1000;
+
+	private long mSamples;
+	private double mTrue;
+	private double mFalse;
+	private double mUndefined;
+	private double mEvaluationTime;
+	private double mDefer;
+
+	/**
+	 * Records a computation of the node.
+	 *
+	 * @param result
+	 *            the computed result
+	 * @param evaluationTime
+	 *            the time the computation took in ns, including the
+	 *            computation of children and fetching sensor values
+	 * @param now
+	 *            the evaluation time
+	 */
+	public void evaluated(Result result, long evaluationTime, long now) {
+		long defer = Math.max(0,
+				Math.min(MAX_DEFER, result.getDeferUntil() - now));
+		TriState triState = result.getTriState();
+		if (mSamples == 0) {
+			mEvaluationTime = evaluationTime;
+			mDefer = defer;
+		} else {
+			mEvaluationTime += ALPHA * (evaluationTime - mEvaluationTime);
+			mDefer += ALPHA * (defer - mDefer);
+		}
+		// value results don't have a tri state
+		if (triState != null) {
+			double weight = mSamples == 0 ? 1 : ALPHA;
+			mTrue += weight * ((triState == TriState.TRUE ? 1 : 0) - mTrue);
+			mFalse += weight * ((triState == TriState.FALSE ? 1 : 0) - mFalse);
+			mUndefined += weight
+					* ((triState == TriState.UNDEFINED ? 1 : 0) - mUndefined);
+		}
+		mSamples++;
+	}
+
+	/**
+	 * @return whether the node has been computed at least once.
+	 */
+	public boolean hasSamples() {
+		return mSamples > 0;
+	}
+
+	public long getSamples() {
+		return mSamples;
+	}
+
+	/**
+	 * @return the probability that the node evaluates to TRUE.
+	 */
+	public double getTrueRatio() {
+		return mTrue;
+	}
+
+	/**
+	 * @return the probability that the node evaluates to FALSE.
+	 */
+	public double getFalseRatio() {
+		return mFalse;
+	}
+
+	/**
+	 * @return the probability that the node evaluates to UNDEFINED.
+	 */
+	public double getUndefinedRatio() {
+		return mUndefined;
+	}
+
+	/**
+	 * @return the average time in ns it takes to compute the node.
+	 */
+	public double getEvaluationTime() {
+		return mEvaluationTime;
+	}
+
+	/**
+	 * @return the average time in ms that the result of the node remained
+	 *         valid.
+	 */
+	public double getDefer() {
+		return mDefer;
+	}
+
+}
@@ -0,0 +1,72 @@
+package interdroid.swan.engine;
+
+import android.os.Bundle;
+
+/**
+ * Merges sensor notifications for the same expression. High rate sensors
+ * notify for every sample on every value path, while a listener can only
+ * observe the outcome of one evaluation at a time. The first notification for
+ * an expression schedules an evaluation at the end of the coalescing window,
+ * but never earlier than the minimum re-evaluation interval of the expression
+ * allows. Notifications that arrive while such an evaluation is pending are
+ * absorbed: they only add their leaf id to the ids whose cache is cleared
+ * before the evaluation.
+ *
+ * Instances are owned by an evaluation shard and only used while holding its
+ * lock.
+ */
+public class NotificationCoalescer {
+
+	private final long mWindow;
+	private int mScale = 1;
+
+	private long mNotifications;
+	private long mAbsorbed;
+
+	/**
+	 * @param window
+	 *            the time in ms within which notifications for the same
+	 *            expression are merged into a single evaluation
+	 */
+	public NotificationCoalescer(long window) {
+		mWindow = window;
+	}
+
+	/**
+	 * @param scale
+	 *            the factor by which the window is scaled, raised when the
+	 *            shard is overloaded
+	 */
+	public void setScale(int scale) {
+		mScale = scale;
+	}
+
+	/**
+	 * Handles a notification for a leaf of an expression.
+	 *
+	 * @param queued
+	 *            the expression
+	 * @param id
+	 *            the leaf id that got new data
+	 * @param now
+	 *            the current time
+	 * @return true if the notification was absorbed by an already pending
+	 *         evaluation, false if an evaluation was scheduled
+	 */
+	public boolean coalesce(QueuedExpression queued, String id, long now) {
+		mNotifications++;
+		if (queued.addPendingId(id)) {
+			mAbsorbed++;
+			return true;
+		}
+		queued.setNotifiedAt(Math.max(now + mWindow * mScale, queued.getLastEvaluated()
+				+ queued.getMinReevaluationInterval()));
+		return false;
+	}
+
+	public void addTo(Bundle bundle) {
+		bundle.putLong("notifications", mNotifications);
+		bundle.putLong("absorbed-notifications", mAbsorbed);
+	}
+
+}
@@ -0,0 +1,150 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.QosClass;
+
+import android.os.Bundle;
+
+/**
+ * Detects overload of an evaluation shard and determines how far the shard
+ * degrades its service. The controller watches the evaluation delay (the lag
+ * between when an expression should be evaluated and when it really is) and
+ * the fraction of time the shard spends evaluating. Each time the lag doubles
+ * beyond the threshold the degradation level goes up by one, up to
+ * {@link #MAX_LEVEL}. Under degradation:
+ * <ul>
+ * <li>deferrals that are not guaranteed are stretched by the configured
+ * stretch per level,</li>
+ * <li>expressions without listeners and background expressions are
+ * stretched twice as much, realtime expressions are not stretched,</li>
+ * <li>the notification coalescing window doubles per level, which lowers the
+ * evaluation rate caused by noisy sensors.</li>
+ * </ul>
+ *
+ * Instances are owned by an evaluation shard and only used while holding its
+ * lock.
+ */
+public class OverloadController {
+
+	/** The highest degradation level. */
+	public static final int MAX_LEVEL = 3;
+
+	/** The weight of a new sample in the running averages. */
+	private static final double ALPHA = 0.2;
+
+	/** Utilization above which the shard is considered busy. */
+	private static final double BUSY = 0.8;
+
+	/** Utilization below which a busy shard is considered recovered. */
+	private static final double IDLE = 0.6;
+
+	private final long mLagThreshold;
+	private final long mStretch;
+
+	private double mLag;
+	private double mUtilization;
+	private long mLastEnd;
+	private int mLevel;
+	private long mLevelChanges;
+
+	/**
+	 * @param lagThreshold
+	 *            the average evaluation delay in ms above which the shard is
+	 *            overloaded, 0 disables degradation
+	 * @param stretch
+	 *            the time in ms by which deferrals are stretched per
+	 *            degradation level
+	 */
+	public OverloadController(long lagThreshold, long stretch) {
+		mLagThreshold = lagThreshold;
+		mStretch = stretch;
+	}
+
+	/**
+	 * Records an evaluation and updates the degradation level.
+	 *
+	 * @param evaluationTime
+	 *            the time in ms the evaluation took
+	 * @param evaluationDelay
+	 *            the time in ms the evaluation was late
+	 * @param end
+	 *            the time at which the evaluation ended
+	 * @return whether the degradation level changed
+	 */
+	public boolean evaluated(long evaluationTime, long evaluationDelay,
+			long end) {
+		mLag += ALPHA * (evaluationDelay - mLag);
+		if (mLastEnd != 0) {
+			double busy = Math.min(1,
+					evaluationTime / (double) Math.max(1, end - mLastEnd));
+			mUtilization += ALPHA * (busy - mUtilization);
+		}
+		mLastEnd = end;
+		if (mLagThreshold <= 0) {
+			return false;
+		}
+
+		int level = 0;
+		for (long threshold = mLagThreshold; level < MAX_LEVEL
+				&& mLag > threshold; threshold *= 2) {
+			level++;
+		}
+		if (mUtilization > BUSY) {
+			level = Math.max(level, 1);
+		}
+		if (level < mLevel) {
+			// only leave a level when clearly below its threshold, to
+			// prevent flapping between levels
+			if (mLag > (mLagThreshold << (mLevel - 1)) / 2
+					|| (mLevel == 1 && mUtilization > IDLE)) {
+				level = mLevel;
+			}
+		}
+		if (level == mLevel) {
+			return false;
+		}
+		mLevel = level;
+		mLevelChanges++;
+		return true;
+	}
+
+	/**
+	 * @return the current degradation level, 0 if the shard is not overloaded.
+	 */
+	public int getLevel() {
+		return mLevel;
+	}
+
+	/**
+	 * @param queued
+	 *            an expression
+	 * @return the time in ms by which deferrals of the expression that are not
+	 *         guaranteed are stretched
+	 */
+	public long getDelay(QueuedExpression queued) {
+		if (queued.getQosClass() == QosClass.REALTIME) {
+			return 0;
+		}
+		long delay = mLevel * mStretch;
+		if (!queued.hasListeners()
+				|| queued.getQosClass() == QosClass.BACKGROUND) {
+			delay *= 2;
+		}
+		return delay;
+	}
+
+	/**
+	 * @return the factor by which the notification coalescing window is
+	 *         scaled
+	 */
+	public int getCoalescingScale() {
+		return 1 << mLevel;
+	}
+
+	public void addTo(Bundle bundle) {
+		bundle.putInt("degradation-level", mLevel);
+		bundle.putLong("degradation-level-changes", mLevelChanges);
+		bundle.putLong("avg-lag", (long) mLag);
+		bundle.putFloat("utilization", (float) mUtilization);
+	}
+
+}
@@ -1,22 +1,33 @@
 package interdroid.swan.engine;
 
+import interdroid.swan.QosClass;
 import interdroid.swan.swansong.Expression;
 import interdroid.swan.swansong.Result;
 import interdroid.swan.swansong.TimestampedValue;
 import interdroid.swan.swansong.TriStateExpression;
 import interdroid.swan.swansong.ValueExpression;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import android.content.Intent;
 import android.os.Bundle;
 
 public class QueuedExpression implements Comparable<QueuedExpression> {
 
 	private Expression mExpression;
+	private CompiledExpression mCompiled;
 	private String mId;
 	private Result mCurrentResult;
+	// the engine reuses result objects, so keep a copy of the current result
+	private final MutableResult mResultCopy = new MutableResult();
 	private Intent mOnTrue;
 	private Intent mOnFalse;
 	private Intent mOnUndefined;
 	private Intent mOnNewValues;
+	private QosClass mQosClass;
 
 	private long mStartTime;
 	private int mEvaluations; // number of evaluations
@@ -25,9 +36,36 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 	private long mMaxEvaluationTime = Long.MIN_VALUE;
 	private long mTotalEvaluationDelay; // total delay
 	private long mNumEvaluationsDelay; // number of evaluations with delay
+	private long mMaxEvaluationDelay;
+	private int mShard; // the shard that evaluates this expression
+
+	// leaf ids notified since the last evaluation, guarded by the shard
+	private final Set<String> mPendingIds = new HashSet<String>();
+	private long mNotifiedAt = Long.MAX_VALUE;
+	private long mLastEvaluated;
+	private long mMinReevaluationInterval;
+	// whether the interval was given at registration, or is the default
+	private boolean mOwnMinReevaluationInterval;
+	private long mNotifications;
+	private long mAbsorbedNotifications;
+	// stretch of deferrals that are not guaranteed, set under overload
+	private long mDegradationDelay;
+	// the values last delivered to the listener, newest first, for deltas
+	private TimestampedValue[] mDelivered;
+	// the sequence number of the last delivery
+	private long mDeliveredSequence = -1;
+	// set when the listener needs the full window with the next update
+	private volatile boolean mDeliverFull;
+	private long mDeltaUpdates;
+	private long mFullUpdates;
+
+	// position and key in the ExpressionQueue of the shard
+	int mQueueIndex = -1;
+	long mQueueKey;
 
 	public QueuedExpression(String id, Expression expression, Intent onTrue,
-			Intent onFalse, Intent onUndefined, Intent onNewValues) {
+			Intent onFalse, Intent onUndefined, Intent onNewValues,
+			QosClass qosClass) {
 		mId = id;
 		mExpression = expression;
 		mStartTime = System.currentTimeMillis();
@@ -35,6 +73,7 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		mOnFalse = onFalse;
 		mOnUndefined = onUndefined;
 		mOnNewValues = onNewValues;
+		mQosClass = qosClass;
 	}
 
 	public int compareTo(QueuedExpression another) {
@@ -45,6 +84,21 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		return mExpression;
 	}
 
+	/**
+	 * @return the compiled form of the expression, used for evaluation.
+	 */
+	public CompiledExpression getCompiled() {
+		return mCompiled;
+	}
+
+	public void setCompiled(CompiledExpression compiled) {
+		mCompiled = compiled;
+	}
+
+	public QosClass getQosClass() {
+		return mQosClass;
+	}
+
 	public String getId() {
 		return mId;
 	}
@@ -56,17 +110,24 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 	 * @return
 	 */
 	public boolean update(Result result) {
+		if (mDeliverFull) {
+			// send the window again, even if it didn't change
+			mDeliverFull = false;
+			mDelivered = null;
+			mCurrentResult = mResultCopy.copyFrom(result);
+			return true;
+		}
 		if (mExpression instanceof TriStateExpression && mCurrentResult != null
 				&& mCurrentResult.getTriState() == result.getTriState()) {
-			mCurrentResult = result;
+			mCurrentResult = mResultCopy.copyFrom(result);
 			return false;
 		} else if (mExpression instanceof ValueExpression
 				&& mCurrentResult != null
 				&& !hasChanged(mCurrentResult.getValues(), result.getValues())) {
-			mCurrentResult = result;
+			mCurrentResult = mResultCopy.copyFrom(result);
 			return false;
 		}
-		mCurrentResult = result;
+		mCurrentResult = mResultCopy.copyFrom(result);
 		return true;
 	}
 
@@ -85,15 +146,172 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		return false;
 	}
 
+	/**
+	 * Records the delivery of values to a listener that asked for deltas, and
+	 * determines how many of the previously delivered values the listener
+	 * keeps. Values are ordered newest first, so a window that moved on
+	 * consists of new values followed by a prefix of the previous window, of
+	 * which the oldest values have been evicted.
+	 * 
+	 * @param values
+	 *            the values that are delivered
+	 * @return the number of previously delivered values that are retained
+	 *         after the new values, or -1 if the values are not a delta of the
+	 *         previous window and have to be delivered in full
+	 */
+	public int deliver(TimestampedValue[] values) {
+		TimestampedValue[] previous = mDelivered;
+		mDelivered = values;
+		mDeliveredSequence++;
+		if (previous == null || previous.length == 0 || values.length == 0) {
+			mFullUpdates++;
+			return -1;
+		}
+		// everything newer than the newest delivered value is new
+		long watermark = previous[0].getTimestamp();
+		int added = 0;
+		while (added < values.length
+				&& values[added].getTimestamp() > watermark) {
+			added++;
+		}
+		int retained = values.length - added;
+		if (retained > previous.length) {
+			mFullUpdates++;
+			return -1;
+		}
+		for (int i = 0; i < retained; i++) {
+			if (!values[added + i].equals(previous[i])) {
+				// a reduced value, or the window changed in another way
+				mFullUpdates++;
+				return -1;
+			}
+		}
+		mDeltaUpdates++;
+		return retained;
+	}
+
+	/**
+	 * @return the sequence number of the last delivery, every delivery has
+	 *         the number of the previous delivery plus one
+	 */
+	public long getDeliveredSequence() {
+		return mDeliveredSequence;
+	}
+
+	/**
+	 * @return the time this expression was queued, the sequence numbers of
+	 *         deliveries start over with every queued expression
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	/**
+	 * Makes the next update deliver the full window, and makes it happen even
+	 * if the values didn't change. Used when the listener lost its window,
+	 * for instance because its process restarted.
+	 */
+	public void deliverFull() {
+		mDeliverFull = true;
+	}
+
 	public long getDeferUntil() {
 		if (mCurrentResult != null) {
-			return mCurrentResult.getDeferUntil();
+			long deferUntil = mCurrentResult.getDeferUntil();
+			if (mDegradationDelay > 0 && deferUntil != Long.MAX_VALUE
+					&& !mCurrentResult.isDeferUntilGuaranteed()) {
+				deferUntil += mDegradationDelay;
+			}
+			// a pending notification can bring the evaluation forward
+			return Math.min(deferUntil, mNotifiedAt);
 		} else {
 			// we don't have a current result yet, so we can't defer
 			return 0;
 		}
 	}
 
+	/**
+	 * Adds a leaf id that got new data to the ids that have to be refreshed
+	 * at the next evaluation.
+	 * 
+	 * @param id
+	 *            the leaf id
+	 * @return whether an evaluation because of a notification was already
+	 *         pending, i.e. whether this notification is absorbed.
+	 */
+	public boolean addPendingId(String id) {
+		boolean pending = mNotifiedAt != Long.MAX_VALUE;
+		mNotifications++;
+		if (pending) {
+			mAbsorbedNotifications++;
+		}
+		mPendingIds.add(id);
+		return pending;
+	}
+
+	public void setNotifiedAt(long notifiedAt) {
+		mNotifiedAt = notifiedAt;
+	}
+
+	/**
+	 * Marks the start of an evaluation and returns the leaf ids that were
+	 * notified since the previous evaluation.
+	 * 
+	 * @param now
+	 *            the start time of the evaluation
+	 * @return the notified leaf ids
+	 */
+	public List<String> startEvaluation(long now) {
+		mLastEvaluated = now;
+		mNotifiedAt = Long.MAX_VALUE;
+		List<String> ids = new ArrayList<String>(mPendingIds);
+		mPendingIds.clear();
+		return ids;
+	}
+
+	public long getLastEvaluated() {
+		return mLastEvaluated;
+	}
+
+	public long getMinReevaluationInterval() {
+		return mMinReevaluationInterval;
+	}
+
+	public void setMinReevaluationInterval(long minReevaluationInterval) {
+		mMinReevaluationInterval = minReevaluationInterval;
+	}
+
+	/**
+	 * Sets the minimum re-evaluation interval that was given when the
+	 * expression was registered, instead of the default of the engine.
+	 */
+	public void setOwnMinReevaluationInterval(long minReevaluationInterval) {
+		mMinReevaluationInterval = minReevaluationInterval;
+		mOwnMinReevaluationInterval = true;
+	}
+
+	public boolean hasOwnMinReevaluationInterval() {
+		return mOwnMinReevaluationInterval;
+	}
+
+	/**
+	 * @param degradationDelay
+	 *            the time in ms by which deferrals that are not guaranteed are
+	 *            stretched, because the shard is overloaded
+	 */
+	public void setDegradationDelay(long degradationDelay) {
+		mDegradationDelay = degradationDelay;
+	}
+
+	/**
+	 * @return whether anyone receives the results of this expression, either
+	 *         through an intent or as a remote expression
+	 */
+	public boolean hasListeners() {
+		return mOnTrue != null || mOnFalse != null || mOnUndefined != null
+				|| mOnNewValues != null || mId.contains(Expression.SEPARATOR);
+	}
+
 	public boolean isDeferUntilGuaranteed() {
 		if (mCurrentResult != null) {
 			return mCurrentResult.isDeferUntilGuaranteed();
@@ -103,6 +321,14 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		}
 	}
 
+	public int getShard() {
+		return mShard;
+	}
+
+	public void setShard(int shard) {
+		mShard = shard;
+	}
+
 	public String toString() {
 		String id = mId;
 		if (mId.contains(Expression.SEPARATOR)) {
@@ -119,6 +345,7 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		if (evalDelay != 0) {
 			mTotalEvaluationDelay += evalDelay;
 			mNumEvaluationsDelay += 1;
+			mMaxEvaluationDelay = Math.max(mMaxEvaluationDelay, evalDelay);
 		}
 	}
 
@@ -126,6 +353,8 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 		Bundle bundle = new Bundle();
 		bundle.putLong("start-time", mStartTime);
 		bundle.putString("name", mId);
+		bundle.putInt("shard", mShard);
+		bundle.putString("qos-class", mQosClass.toString());
 		bundle.putString("result", mCurrentResult == null ? "n.a."
 				: mCurrentResult.toString());
 		bundle.putDouble(
@@ -140,6 +369,12 @@ public class QueuedExpression implements Comparable<QueuedExpression> {
 						.currentTimeMillis() - mStartTime)));
 		bundle.putLong("avg-evaluation-delay",
 				(mTotalEvaluationDelay / Math.max(mNumEvaluationsDelay, 1)));
+		bundle.putLong("max-evaluation-delay", mMaxEvaluationDelay);
+		bundle.putLong("notifications", mNotifications);
+		bundle.putLong("absorbed-notifications", mAbsorbedNotifications);
+		bundle.putLong("degradation-delay", mDegradationDelay);
+		bundle.putLong("delta-updates", mDeltaUpdates);
+		bundle.putLong("full-updates", mFullUpdates);
 		return bundle;
 	}
 
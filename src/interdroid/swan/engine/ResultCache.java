@@ -0,0 +1,105 @@
+package interdroid.swan.engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * Keeps the memory used by the sensor windows of the shared sensor bindings
+ * within a budget. The budget is expressed in the number of values held by
+ * the windows. When the budget is exceeded, the windows of the least recently
+ * used bindings are evicted, so that they are fetched from the sensor again
+ * when they are needed.
+ *
+ * Node results are not managed here: each node of a compiled expression has a
+ * single result slot, which is dropped together with the expression when it
+ * is stopped. Their reuse is counted per shard, see {@link EvaluationShard}.
+ */
+public class ResultCache {
+
+	private final long mBudget;
+
+	/** The window size of each binding, in least recently used order. */
+	private final LinkedHashMap<SensorBinding, Integer> mWindows = new LinkedHashMap<SensorBinding, Integer>(
+			16, 0.75f, true);
+	private long mSize;
+
+	private long mWindowHits;
+	private long mWindowMisses;
+	private long mEvictions;
+
+	/**
+	 * @param budget
+	 *            the maximum number of values held by all windows together
+	 */
+	public ResultCache(long budget) {
+		mBudget = budget;
+	}
+
+	/**
+	 * Records that a binding reused its window.
+	 *
+	 * @param binding
+	 *            the binding
+	 */
+	public synchronized void hit(SensorBinding binding) {
+		mWindowHits++;
+		// moves the binding to the most recently used position
+		mWindows.get(binding);
+	}
+
+	/**
+	 * Records that a binding fetched a new window, and evicts the windows of
+	 * other bindings if the budget is exceeded.
+	 *
+	 * @param binding
+	 *            the binding
+	 * @param size
+	 *            the number of values in the new window
+	 */
+	public synchronized void put(SensorBinding binding, int size) {
+		mWindowMisses++;
+		Integer previous = mWindows.put(binding, size);
+		mSize += size - (previous == null ? 0 : previous);
+		Iterator<Map.Entry<SensorBinding, Integer>> iterator = mWindows
+				.entrySet().iterator();
+		while (mSize > mBudget && iterator.hasNext()) {
+			Map.Entry<SensorBinding, Integer> eldest = iterator.next();
+			if (eldest.getKey() == binding) {
+				// never evict the window that is being used
+				continue;
+			}
+			eldest.getKey().evictWindow();
+			mSize -= eldest.getValue();
+			mEvictions++;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Drops the window of a binding that is no longer used.
+	 *
+	 * @param binding
+	 *            the binding
+	 */
+	public synchronized void remove(SensorBinding binding) {
+		Integer size = mWindows.remove(binding);
+		if (size != null) {
+			mSize -= size;
+		}
+	}
+
+	public synchronized Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putLong("budget", mBudget);
+		bundle.putLong("size", mSize);
+		bundle.putInt("windows", mWindows.size());
+		bundle.putLong("window-hits", mWindowHits);
+		bundle.putLong("window-misses", mWindowMisses);
+		bundle.putLong("evictions", mEvictions);
+		return bundle;
+	}
+
+}
@@ -0,0 +1,369 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.sensors.Sensor;
+import interdroid.swan.sensors.SharedValues;
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.SensorValueExpression;
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * A single registration with a sensor that is shared by all expression leafs
+ * that read the same location, entity, value path, configuration and history
+ * length. The binding keeps the window it fetched last, so that each distinct
+ * leaf is fetched once per sensor notification, regardless of how many
+ * expressions use it. The binding is reference counted by the leaf ids using
+ * it.
+ */
+public class SensorBinding {
+
+	private static final String TAG = "SensorBinding";
+
+	private final String mId;
+	private final SensorValueExpression mExpression;
+	private final Set<String> mLeafIds = new HashSet<String>();
+
+	private ServiceConnection mConnection;
+	private volatile Sensor mSensor;
+	// values shared by the sensor through memory, null to use Binder
+	private volatile SharedValues mSharedValues;
+	private volatile int mInterfaceVersion;
+	// set when the sensor failed to reduce, the engine reduces from then on
+	private boolean mReduceFailed;
+
+	private final ResultCache mCache;
+
+	// evicted by the cache without holding the lock of this binding
+	private volatile List<TimestampedValue> mWindow;
+	private boolean mDirty = true;
+	private boolean mReleased;
+	// values reduced by the sensor, per mode, dropped on new data
+	private final Map<HistoryReductionMode, List<TimestampedValue>> mReduced = new EnumMap<HistoryReductionMode, List<TimestampedValue>>(
+			HistoryReductionMode.class);
+
+	/**
+	 * @param expression
+	 *            the sensor value expression of the first leaf using this
+	 *            binding
+	 * @param cache
+	 *            the cache that keeps the memory used by windows in check
+	 */
+	public SensorBinding(SensorValueExpression expression, ResultCache cache) {
+		mId = keyFor(expression);
+		mExpression = expression;
+		mCache = cache;
+	}
+
+	/**
+	 * Returns the key that identifies a binding. Leafs with the same key share
+	 * a binding. The key is also used as the id with which the binding is
+	 * registered at the sensor.
+	 *
+	 * @param expression
+	 *            the sensor value expression
+	 * @return the key
+	 */
+	public static String keyFor(SensorValueExpression expression) {
+		StringBuilder key = new StringBuilder();
+		key.append(expression.getLocation()).append('@')
+				.append(expression.getEntity()).append(':')
+				.append(expression.getValuePath());
+		Bundle config = expression.getConfiguration();
+		if (config != null && config.size() > 0) {
+			boolean first = true;
+			// sort the keys, bundles don't have a defined order
+			for (String configKey : new TreeSet<String>(config.keySet())) {
+				key.append(first ? '?' : '&').append(configKey).append('=')
+						.append(config.get(configKey));
+				first = false;
+			}
+		}
+		key.append('{').append(expression.getHistoryLength()).append('}');
+		return key.toString();
+	}
+
+	/**
+	 * @return the id used for the registration at the sensor.
+	 */
+	public String getId() {
+		return mId;
+	}
+
+	public SensorValueExpression getExpression() {
+		return mExpression;
+	}
+
+	public ServiceConnection getConnection() {
+		return mConnection;
+	}
+
+	public void setConnection(ServiceConnection connection) {
+		mConnection = connection;
+	}
+
+	/**
+	 * @return the sensor proxy, or null if the service is not yet connected.
+	 */
+	public Sensor getSensor() {
+		return mSensor;
+	}
+
+	public void setSensor(Sensor sensor) {
+		mSensor = sensor;
+	}
+
+	/**
+	 * @return the version of the Sensor interface the sensor implements, 0
+	 *         for sensors that only know the original calls
+	 */
+	public int getInterfaceVersion() {
+		return mInterfaceVersion;
+	}
+
+	public void setInterfaceVersion(int interfaceVersion) {
+		mInterfaceVersion = interfaceVersion;
+	}
+
+	/**
+	 * @param sharedValues
+	 *            the segment through which the sensor shares its values, or
+	 *            null to fetch values through Binder
+	 */
+	public void setSharedValues(SharedValues sharedValues) {
+		mSharedValues = sharedValues;
+	}
+
+	/**
+	 * @param id
+	 *            a leaf id that starts using this binding
+	 * @return false if the binding was already released by its last leaf, in
+	 *         which case it can't be used anymore
+	 */
+	public synchronized boolean addLeaf(String id) {
+		if (mReleased) {
+			return false;
+		}
+		mLeafIds.add(id);
+		return true;
+	}
+
+	/**
+	 * Removes a leaf from the binding. When the last leaf is removed, the
+	 * binding is released and its window dropped. Evaluations that still hold
+	 * on to the binding won't add its window to the cache again.
+	 * 
+	 * @param id
+	 *            the leaf id that no longer uses this binding
+	 * @return the number of leafs that still use this binding
+	 */
+	public synchronized int removeLeaf(String id) {
+		mLeafIds.remove(id);
+		if (mLeafIds.isEmpty()) {
+			mReleased = true;
+			mWindow = null;
+		}
+		return mLeafIds.size();
+	}
+
+	public synchronized List<String> getLeafIds() {
+		return new ArrayList<String>(mLeafIds);
+	}
+
+	/**
+	 * Invalidates the fetched window, called when the sensor notifies new
+	 * data.
+	 */
+	public synchronized void markDirty() {
+		mDirty = true;
+		mReduced.clear();
+	}
+
+	/**
+	 * Drops the fetched window to free memory, it is fetched again when it is
+	 * needed.
+	 */
+	public void evictWindow() {
+		mWindow = null;
+	}
+
+	/**
+	 * Returns the values within the history window. The window is only
+	 * fetched from the sensor if it got new data since the previous fetch,
+	 * otherwise values that fell out of the window are dropped from the window
+	 * fetched before. If the window wasn't evicted, only the values newer than
+	 * the window are fetched and added to it.
+	 *
+	 * @param now
+	 *            the evaluation time
+	 * @return a copy of the values in the window, in the order provided by the
+	 *         sensor, or null if the sensor did not provide values
+	 * @throws RemoteException
+	 *             if fetching the values failed
+	 */
+	public synchronized List<TimestampedValue> getValues(long now)
+			throws RemoteException {
+		long historyLength = mExpression.getHistoryLength();
+		List<TimestampedValue> window = mWindow;
+		if (mDirty || window == null) {
+			List<TimestampedValue> fetched = readShared(now, historyLength);
+			if (fetched == null && window != null && historyLength > 0) {
+				fetched = fetchSince(window, now, historyLength);
+			}
+			if (fetched == null) {
+				// not shared, or the segment couldn't answer
+				fetched = mSensor.getValues(mId, now, historyLength);
+			}
+			if (fetched == null) {
+				return null;
+			}
+			window = fetched;
+			mWindow = window;
+			mDirty = false;
+			if (!mReleased) {
+				mCache.put(this, window.size());
+			}
+		} else {
+			mCache.hit(this);
+		}
+		if (historyLength == 0) {
+			List<TimestampedValue> result = new ArrayList<TimestampedValue>(1);
+			if (window.size() > 0) {
+				result.add(window.get(0));
+			}
+			return result;
+		}
+		// callers are allowed to reorder the list (e.g. to find the median),
+		// so always return a copy
+		return TimestampedValue.newerThan(window, now - historyLength);
+	}
+
+	/**
+	 * @return the values read from the shared segment, or null if the values
+	 *         aren't shared or the segment can't answer
+	 */
+	private List<TimestampedValue> readShared(long now, long historyLength) {
+		SharedValues shared = mSharedValues;
+		if (shared == null) {
+			return null;
+		}
+		try {
+			return shared.read(now, historyLength);
+		} catch (RuntimeException e) {
+			// a broken mapping, read through Binder from now on
+			Log.e(TAG, "Failed to read shared values: " + mId, e);
+			mSharedValues = null;
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the values within the history window reduced by the sensor, so
+	 * that the window itself doesn't have to be fetched. A reduced value is
+	 * reused until the sensor gets new data or its oldest value leaves the
+	 * history.
+	 *
+	 * @param mode
+	 *            the reduction mode
+	 * @param now
+	 *            the evaluation time
+	 * @return an empty list if there are no values, otherwise the reduced
+	 *         value followed by a value with the timestamp of the oldest value
+	 *         in the window, or null if the window should be fetched and
+	 *         reduced in the engine, also when the sensor can't reduce
+	 */
+	public synchronized List<TimestampedValue> getReducedValues(
+			HistoryReductionMode mode, long now) {
+		long historyLength = mExpression.getHistoryLength();
+		if (mWindow != null || mSharedValues != null) {
+			// the values are at hand already
+			return null;
+		}
+		if (mInterfaceVersion < 1 || mReduceFailed) {
+			// the sensor can't reduce
+			return null;
+		}
+		List<TimestampedValue> reduced = mReduced.get(mode);
+		if (reduced != null
+				&& (reduced.isEmpty() || now - historyLength < reduced.get(1)
+						.getTimestamp())) {
+			return reduced;
+		}
+		try {
+			reduced = mSensor.getReducedValues(mId, mode.toParseString(), now,
+					historyLength);
+		} catch (RemoteException e) {
+			Log.d(TAG, "Sensor can't reduce values: " + mId, e);
+			mReduceFailed = true;
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. a security exception
+			Log.d(TAG, "Sensor can't reduce values: " + mId, e);
+			mReduceFailed = true;
+			return null;
+		}
+		if (reduced == null || (reduced.size() != 0 && reduced.size() != 2)
+				|| (reduced.size() == 2 && (reduced.get(0) == null || reduced
+						.get(1) == null))) {
+			// fetch the values and reduce them in the engine
+			return null;
+		}
+		mReduced.put(mode, reduced);
+		return reduced;
+	}
+
+	/**
+	 * Fetches the values newer than the newest value of the window and merges
+	 * them into the window, keeping the order of the sensor.
+	 *
+	 * @return the new window, or null if the full window has to be fetched
+	 */
+	private List<TimestampedValue> fetchSince(List<TimestampedValue> window,
+			long now, long historyLength) {
+		if (window.isEmpty() || mInterfaceVersion < 1) {
+			return null;
+		}
+		boolean newestFirst = window.size() < 2
+				|| window.get(0).getTimestamp() >= window
+						.get(window.size() - 1).getTimestamp();
+		long since = window.get(newestFirst ? 0 : window.size() - 1)
+				.getTimestamp();
+		List<TimestampedValue> added;
+		try {
+			added = mSensor.getValuesSince(mId, since, now, historyLength);
+		} catch (RemoteException e) {
+			Log.d(TAG, "Sensor can't fetch new values: " + mId, e);
+			return null;
+		} catch (RuntimeException e) {
+			// e.g. a security exception
+			Log.d(TAG, "Sensor can't fetch new values: " + mId, e);
+			return null;
+		}
+		if (added == null) {
+			return null;
+		}
+		List<TimestampedValue> merged = new ArrayList<TimestampedValue>(
+				window.size() + added.size());
+		if (newestFirst) {
+			merged.addAll(added);
+			merged.addAll(window);
+		} else {
+			merged.addAll(window);
+			merged.addAll(added);
+		}
+		// drop the values that fell out of the history
+		return TimestampedValue.newerThan(merged, now - historyLength);
+	}
+
+}
@@ -0,0 +1,135 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.ExpressionManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Groups update broadcasts per receiving package. Expressions that change
+ * together, for instance because they depend on the same sensor, would
+ * otherwise each cause a broadcast. The first update for a package starts the
+ * batching window; at the end of the window all updates for that package are
+ * sent as a single {@link ExpressionManager#ACTION_BATCH} broadcast, which the
+ * {@link ExpressionManager} unpacks into the listener callbacks.
+ *
+ * Only updates that are marked with {@link ExpressionManager#EXTRA_BATCHABLE}
+ * are batched. These are the intents that the {@link ExpressionManager}
+ * creates for its own listeners; intents provided by applications are
+ * delivered as they are.
+ */
+public class UpdateBatcher {
+
+	private final Context mContext;
+	private final long mWindow;
+	private final ScheduledExecutorService mExecutor = Executors
+			.newSingleThreadScheduledExecutor();
+
+	/** The updates waiting to be sent, mapped by receiving package. */
+	private final Map<String, ArrayList<Intent>> mPending = new HashMap<String, ArrayList<Intent>>();
+
+	private long mUpdates;
+	private long mBroadcasts;
+
+	/**
+	 * @param context
+	 *            the context used to send broadcasts
+	 * @param window
+	 *            the time in ms during which updates for the same package are
+	 *            collected, 0 disables batching
+	 */
+	public UpdateBatcher(Context context, long window) {
+		mContext = context;
+		mWindow = window;
+	}
+
+	/**
+	 * Adds an update to the batch of its package. The update is copied, so
+	 * the caller may reuse the intent.
+	 *
+	 * @param update
+	 *            the update
+	 * @return false if the update can't be batched and has to be sent by the
+	 *         caller
+	 */
+	public boolean add(Intent update) {
+		if (mWindow <= 0
+				|| !update.getBooleanExtra(ExpressionManager.EXTRA_BATCHABLE,
+						false) || update.getData() == null) {
+			return false;
+		}
+		final String packageName = update.getData().getAuthority();
+		synchronized (this) {
+			if (mExecutor.isShutdown()) {
+				return false;
+			}
+			mUpdates++;
+			ArrayList<Intent> batch = mPending.get(packageName);
+			if (batch == null) {
+				batch = new ArrayList<Intent>();
+				mPending.put(packageName, batch);
+				mExecutor.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						flush(packageName);
+					}
+				}, mWindow, TimeUnit.MILLISECONDS);
+			}
+			batch.add(new Intent(update));
+		}
+		return true;
+	}
+
+	private void flush(String packageName) {
+		ArrayList<Intent> batch;
+		synchronized (this) {
+			batch = mPending.remove(packageName);
+			if (batch == null) {
+				return;
+			}
+			mBroadcasts++;
+		}
+		if (batch.size() == 1) {
+			// no need to wrap a single update
+			mContext.sendBroadcast(batch.get(0));
+			return;
+		}
+		Intent intent = new Intent(ExpressionManager.ACTION_BATCH);
+		intent.setData(Uri.parse("swan://" + packageName));
+		intent.putParcelableArrayListExtra(ExpressionManager.EXTRA_UPDATES,
+				batch);
+		mContext.sendBroadcast(intent);
+	}
+
+	/**
+	 * Sends the pending batches and stops batching, later updates have to be
+	 * sent by the caller.
+	 */
+	public void shutdown() {
+		String[] packageNames;
+		synchronized (this) {
+			mExecutor.shutdownNow();
+			packageNames = mPending.keySet().toArray(
+					new String[mPending.size()]);
+		}
+		for (String packageName : packageNames) {
+			flush(packageName);
+		}
+	}
+
+	public synchronized void addTo(Bundle bundle) {
+		bundle.putLong("batched-updates", mUpdates);
+		bundle.putLong("update-broadcasts", mBroadcasts);
+	}
+
+}
@@ -1,13 +1,18 @@
 package interdroid.swan.sensors;
 
+import interdroid.swan.swansong.HistoryReductionMode;
 import interdroid.swan.swansong.TimestampedValue;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
 /**
  * Abstract class that implements basic functionality for sensors. Descendants
  * only have to implement requestReading() and onEntityServiceLevelChange(). The
@@ -15,18 +20,31 @@ import java.util.Map;
  */
 public abstract class AbstractMemorySensor extends AbstractSensorBase {
 
+	private static final String TAG = "AbstractMemorySensor";
+
+	/**
+	 * The time in ms that values are kept beyond the longest history length
+	 * of the registered expressions, for evaluations that lag behind.
+	 */
+	private static final long RETENTION_MARGIN = 5000;
+
 	/**
 	 * The map of values for this sensor.
 	 */
-	private final Map<String, List<TimestampedValue>> values = new HashMap<String, List<TimestampedValue>>();
+	private final Map<String, ValueHistory> values = new HashMap<String, ValueHistory>();
 	
+	/**
+	 * The shared segments of the value paths that are shared with the engine.
+	 */
+	private final Map<String, SharedValues> mShared = new HashMap<String, SharedValues>();
+
 	private long mReadings = 0;
 	private long mLastReadingTimestamp = 0;
 
 	/**
 	 * @return the values
 	 */
-	public final Map<String, List<TimestampedValue>> getValues() {
+	public final Map<String, ValueHistory> getValues() {
 		return values;
 	}
 
@@ -34,29 +52,14 @@ public abstract class AbstractMemorySensor extends AbstractSensorBase {
 	public final void init() {
 		for (String valuePath : VALUE_PATHS) {
 			expressionIdsPerValuePath.put(valuePath, new ArrayList<String>());
-			getValues()
-					.put(valuePath,
-							Collections
-									.synchronizedList(new ArrayList<TimestampedValue>()));
+			getValues().put(valuePath, new ValueHistory());
 		}
 	}
 
 	/**
-	 * Trims the values to the given length.
-	 * 
-	 * @param history
-	 *            the number of items to keep
-	 */
-	private final void trimValues(final int history) {
-		for (String path : VALUE_PATHS) {
-			if (getValues().get(path).size() >= history) {
-				getValues().get(path).remove(getValues().get(path).size() - 1);
-			}
-		}
-	}
-
-	/**
-	 * Adds a value for the given value path to the history.
+	 * Adds a value for the given value path to the history. The history keeps
+	 * the values that the registered expressions read, but at most
+	 * historySize values.
 	 * 
 	 * @param valuePath
 	 *            the value path
@@ -65,14 +68,16 @@ public abstract class AbstractMemorySensor extends AbstractSensorBase {
 	 * @param value
 	 *            the value
 	 * @param historySize
-	 *            the history size
+	 *            the maximum history size
 	 */
 	protected final void putValueTrimSize(final String valuePath,
 			final String id, final long now, final Object value,
 			final int historySize) {
 		updateReadings(now);
-		getValues().get(valuePath).add(0, new TimestampedValue(value, now));
-		trimValues(historySize);
+		ValueHistory history = getValues().get(valuePath);
+		history.add(now, value);
+		history.trimOlderThan(keepSince(now, getMaxHistoryLength(valuePath)));
+		history.trimToSize(historySize);
 		if (id != null) {
 			notifyDataChangedForId(id);
 		} else {
@@ -81,7 +86,9 @@ public abstract class AbstractMemorySensor extends AbstractSensorBase {
 	}
 
 	/**
-	 * Adds a value for the given value path to the history.
+	 * Adds a value for the given value path to the history. The history keeps
+	 * the values that the registered expressions read, but at most the
+	 * values of historyLength.
 	 * 
 	 * @param valuePath
 	 *            the value path
@@ -90,14 +97,16 @@ public abstract class AbstractMemorySensor extends AbstractSensorBase {
 	 * @param value
 	 *            the value
 	 * @param historyLength
-	 *            the history length
+	 *            the maximum history length
 	 */
 	protected final void putValueTrimTime(final String valuePath,
 			final String id, final long now, final Object value,
 			final long historyLength) {
 		updateReadings(now);
-		getValues().get(valuePath).add(0, new TimestampedValue(value, now));
-		trimValueByTime(now - historyLength);
+		ValueHistory history = getValues().get(valuePath);
+		history.add(now, value);
+		history.trimOlderThan(Math.max(now - historyLength,
+				keepSince(now, getMaxHistoryLength(valuePath))));
 		if (id != null) {
 			notifyDataChangedForId(id);
 		} else {
@@ -113,28 +122,149 @@ public abstract class AbstractMemorySensor extends AbstractSensorBase {
 	}
 
 	/**
-	 * Trims values past the given expire time.
-	 * 
-	 * @param expire
-	 *            the time to trim after
+	 * Releases the values that no expression reads anymore.
 	 */
-	private final void trimValueByTime(final long expire) {
-		for (String valuePath : VALUE_PATHS) {
-			List<TimestampedValue> values = getValues().get(valuePath);
-			while ((values.size() > 0 && values.get(values.size() - 1)
-					.getTimestamp() < expire)) {
-				values.remove(values.size() - 1);
-			}
+	@Override
+	protected void onMaxHistoryLengthChanged(final String valuePath,
+			final long maxHistoryLength) {
+		ValueHistory history = values.get(valuePath);
+		if (history != null) {
+			history.trimOlderThan(keepSince(System.currentTimeMillis(),
+					maxHistoryLength));
+		}
+	}
+
+	/**
+	 * @return the time of the oldest value that expressions reading the
+	 *         history length may need
+	 */
+	private static long keepSince(final long now, final long historyLength) {
+		if (historyLength >= now - RETENTION_MARGIN) {
+			// unknown, keep everything
+			return Long.MIN_VALUE;
 		}
+		return now - historyLength - RETENTION_MARGIN;
 	}
 
 	@Override
 	public final List<TimestampedValue> getValues(final String id,
 			final long now, final long timespan) {
-		return getValuesForTimeSpan(values.get(registeredValuePaths.get(id)),
-				now, timespan);
+		ValueHistory history = values.get(registeredValuePaths.get(id));
+		if (history == null) {
+			return new ArrayList<TimestampedValue>();
+		}
+		return history.getValues(now, timespan);
 	}
 	
+	@Override
+	public final List<TimestampedValue> getValuesSince(final String id,
+			final long since, final long now, final long timespan) {
+		ValueHistory history = values.get(registeredValuePaths.get(id));
+		if (history == null) {
+			return new ArrayList<TimestampedValue>();
+		}
+		if (timespan == 0) {
+			return TimestampedValue.newerThan(history.getValues(now, 0),
+					since);
+		}
+		return history.getValuesSince(Math.max(since, now - timespan));
+	}
+
+	/**
+	 * Reduces the history incrementally, see {@link WindowAggregator}.
+	 */
+	@Override
+	public final List<TimestampedValue> getReducedValues(final String id,
+			final String mode, final long now, final long timespan) {
+		HistoryReductionMode reduction = HistoryReductionMode.parse(mode);
+		ValueHistory history = values.get(registeredValuePaths.get(id));
+		if (history == null || timespan <= 0 || reduction == null
+				|| reduction == HistoryReductionMode.ALL
+				|| reduction == HistoryReductionMode.ANY) {
+			return super.getReducedValues(id, mode, now, timespan);
+		}
+		return history.reduce(reduction, now, timespan);
+	}
+
+	/**
+	 * Shares the history of the value path of the id in a memory mapped
+	 * segment. Each value path is shared at most once, all ids reading it use
+	 * the same segment.
+	 */
+	@Override
+	public ParcelFileDescriptor getSharedValues(final String id) {
+		String valuePath = registeredValuePaths.get(id);
+		ValueHistory history = values.get(valuePath);
+		if (history == null) {
+			return null;
+		}
+		File file = sharedFile(valuePath);
+		synchronized (mShared) {
+			try {
+				if (!mShared.containsKey(valuePath)) {
+					SharedValues shared = SharedValues.create(file,
+							SharedValues.DEFAULT_CAPACITY);
+					if (!history.share(shared)) {
+						file.delete();
+						return null;
+					}
+					mShared.put(valuePath, shared);
+				}
+				return ParcelFileDescriptor.open(file,
+						ParcelFileDescriptor.MODE_READ_ONLY);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to share values of: " + valuePath, e);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stops sharing the value path when no expression reads it anymore.
+	 */
+	@Override
+	protected void onValuePathUnused(final String valuePath) {
+		unshare(valuePath);
+	}
+
+	/**
+	 * Stops sharing all value paths.
+	 */
+	@Override
+	protected void onDestroyStorage() {
+		synchronized (mShared) {
+			for (String valuePath : new ArrayList<String>(mShared.keySet())) {
+				unshare(valuePath);
+			}
+		}
+	}
+
+	/**
+	 * Stops mirroring the history of the value path and deletes its segment.
+	 * Readers that still map the segment see it invalidated and fall back to
+	 * Binder, the mapping itself is released when it is collected.
+	 */
+	private void unshare(final String valuePath) {
+		synchronized (mShared) {
+			SharedValues shared = mShared.remove(valuePath);
+			if (shared == null) {
+				return;
+			}
+			ValueHistory history = values.get(valuePath);
+			if (history != null) {
+				history.share(null);
+			}
+			shared.invalidate();
+			if (!sharedFile(valuePath).delete()) {
+				Log.w(TAG, "Failed to delete shared values of: " + valuePath);
+			}
+		}
+	}
+
+	private File sharedFile(final String valuePath) {
+		return new File(getCacheDir(), "values-" + valuePath);
+	}
+
 	@Override
 	public long getReadings() {
 		return mReadings;
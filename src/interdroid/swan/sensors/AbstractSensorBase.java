@@ -1,16 +1,19 @@
 package interdroid.swan.sensors;
 
+import interdroid.swan.swansong.HistoryReductionMode;
 import interdroid.swan.swansong.TimestampedValue;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -65,6 +68,18 @@ public abstract class AbstractSensorBase extends Service implements
 	 */
 	protected final Map<String, List<String>> expressionIdsPerValuePath = new HashMap<String, List<String>>();
 
+	/**
+	 * The history length in ms that each registered id reads, ids of engines
+	 * that don't set it are missing.
+	 */
+	protected final Map<String, Long> registeredHistoryLengths = new HashMap<String, Long>();
+
+	/**
+	 * The longest history length in ms of the ids of each value path, read
+	 * without the lock by sensors as they add values.
+	 */
+	private final Map<String, Long> mMaxHistoryLengths = new ConcurrentHashMap<String, Long>();
+
 	/**
 	 * Initializes the default configuration for this sensor.
 	 * 
@@ -118,6 +133,7 @@ public abstract class AbstractSensorBase extends Service implements
 						expressionIdsPerValuePath.put(valuePath, ids);
 					}
 					ids.add(id);
+					updateMaxHistoryLength(valuePath);
 					printState();
 					Log.d(TAG, "Registering with implementation.");
 					mSensorInterface.register(id, valuePath, configuration);
@@ -128,11 +144,31 @@ public abstract class AbstractSensorBase extends Service implements
 			}
 		}
 
+		@Override
+		public void setHistoryLength(final String id, final long historyLength)
+				throws RemoteException {
+			// called before register by engines that know the call
+			synchronized (mSensorInterface) {
+				registeredHistoryLengths.put(id, historyLength);
+				String valuePath = registeredValuePaths.get(id);
+				if (valuePath != null) {
+					updateMaxHistoryLength(valuePath);
+				}
+			}
+		}
+
 		@Override
 		public void unregister(final String id) throws RemoteException {
 			registeredConfigurations.remove(id);
 			String valuePath = registeredValuePaths.remove(id);
-			expressionIdsPerValuePath.get(valuePath).remove(id);
+			synchronized (mSensorInterface) {
+				registeredHistoryLengths.remove(id);
+				expressionIdsPerValuePath.get(valuePath).remove(id);
+				updateMaxHistoryLength(valuePath);
+				if (expressionIdsPerValuePath.get(valuePath).isEmpty()) {
+					onValuePathUnused(valuePath);
+				}
+			}
 			printState();
 			mSensorInterface.unregister(id);
 		}
@@ -148,11 +184,53 @@ public abstract class AbstractSensorBase extends Service implements
 			return null;
 		}
 
+		@Override
+		public List<TimestampedValue> getValuesSince(final String id,
+				final long since, final long now, final long timespan)
+				throws RemoteException {
+			try {
+				return mSensorInterface.getValuesSince(id, since, now,
+						timespan);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+			return null;
+		}
+
+		@Override
+		public List<TimestampedValue> getReducedValues(final String id,
+				final String mode, final long now, final long timespan)
+				throws RemoteException {
+			try {
+				return mSensorInterface.getReducedValues(id, mode, now,
+						timespan);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+			return null;
+		}
+
 		@Override
 		public long getStartUpTime(String id) throws RemoteException {
 			return mSensorInterface.getStartUpTime(id);
 		}
 
+		@Override
+		public int getInterfaceVersion() throws RemoteException {
+			return INTERFACE_VERSION;
+		}
+
+		@Override
+		public ParcelFileDescriptor getSharedValues(String id)
+				throws RemoteException {
+			try {
+				return mSensorInterface.getSharedValues(id);
+			} catch (Throwable t) {
+				Log.e(TAG, "Failed to share values for: " + id, t);
+			}
+			return null;
+		}
+
 		@Override
 		public Bundle getInfo() throws RemoteException {
 			Bundle info = new Bundle();
@@ -166,6 +244,7 @@ public abstract class AbstractSensorBase extends Service implements
 			info.putDouble("sensingRate", getAverageSensingRate());
 			info.putLong("starttime", getStartTime());
 			info.putFloat("currentMilliAmpere", getCurrentMilliAmpere());
+			addInfo(info);
 			return info;
 		}
 	};
@@ -215,9 +294,32 @@ public abstract class AbstractSensorBase extends Service implements
 		} catch (Exception e) {
 			Log.e(TAG, "Got exception destroying sensor service", e);
 		}
+		try {
+			onDestroyStorage();
+		} catch (Exception e) {
+			Log.e(TAG, "Got exception destroying sensor storage", e);
+		}
 		super.onDestroy();
 	}
 
+	/**
+	 * Adds sensor specific statistics to the info of the sensor. The default
+	 * adds nothing.
+	 * 
+	 * @param info
+	 *            the bundle to add to
+	 */
+	protected void addInfo(final Bundle info) {
+	}
+
+	/**
+	 * Called after {@link SensorInterface#onDestroySensor()}, when the sensor
+	 * has stopped producing values, to let the storage of the values finish
+	 * its work. The default does nothing.
+	 */
+	protected void onDestroyStorage() {
+	}
+
 	// =-=-=-=- Utility Functions -=-=-=-=
 
 	/**
@@ -237,6 +339,67 @@ public abstract class AbstractSensorBase extends Service implements
 		return 0;
 	}
 
+	/**
+	 * Filters the values of the time span, sensors that can select the new
+	 * values more efficiently override this.
+	 */
+	@Override
+	public List<TimestampedValue> getValuesSince(String id, long since,
+			long now, long timespan) {
+		List<TimestampedValue> values = getValues(id, now, timespan);
+		if (values == null) {
+			return null;
+		}
+		return TimestampedValue.newerThan(values, since);
+	}
+
+	/**
+	 * Reduces the values of the time span in the sensor process, sensors that
+	 * can reduce more efficiently override this.
+	 */
+	@Override
+	public List<TimestampedValue> getReducedValues(String id, String mode,
+			long now, long timespan) {
+		return reduce(getValues(id, now, timespan),
+				HistoryReductionMode.parse(mode));
+	}
+
+	/**
+	 * Reduces values as the engine would, see
+	 * {@link SensorInterface#getReducedValues(String, String, long, long)}.
+	 * 
+	 * @param values
+	 *            the values, sorted by time
+	 * @param mode
+	 *            the reduction mode
+	 * @return the reduced value and its metadata, or null if the mode doesn't
+	 *         reduce
+	 */
+	protected static final List<TimestampedValue> reduce(
+			final List<TimestampedValue> values, final HistoryReductionMode mode) {
+		if (values == null || mode == null
+				|| mode == HistoryReductionMode.ALL
+				|| mode == HistoryReductionMode.ANY) {
+			return null;
+		}
+		List<TimestampedValue> result = new ArrayList<TimestampedValue>(2);
+		if (values.size() == 0) {
+			return result;
+		}
+		long oldest = Math.min(values.get(0).getTimestamp(),
+				values.get(values.size() - 1).getTimestamp());
+		int count = values.size();
+		result.add(TimestampedValue.applyMode(values, mode)[0]);
+		result.add(new TimestampedValue(count, oldest));
+		return result;
+	}
+
+	@Override
+	public ParcelFileDescriptor getSharedValues(String id) {
+		// by default values only go through Binder
+		return null;
+	}
+
 	/**
 	 * Send a notification that data for the given value path changed.
 	 * 
@@ -264,7 +427,8 @@ public abstract class AbstractSensorBase extends Service implements
 	/**
 	 * Gets all readings from timespan seconds ago until now. Readings are in
 	 * reverse order (latest first). This is important for the expression
-	 * engine.
+	 * engine. The start of the window is found with a binary search, only the
+	 * readings in the window are copied.
 	 * 
 	 * @param now
 	 *            the start
@@ -277,27 +441,91 @@ public abstract class AbstractSensorBase extends Service implements
 	protected static final List<TimestampedValue> getValuesForTimeSpan(
 			final List<TimestampedValue> values, final long now,
 			final long timespan) {
-		// make a copy of the list
-		List<TimestampedValue> result = new ArrayList<TimestampedValue>();
-
-		if (timespan == 0) {
-			if (values != null && values.size() > 0) {
-				result.add(values.get(0));
-			}
-		} else {
-			int startPos = 0;
-			if (values != null) {
-				result.addAll(values);
-				for (int i = 0; i < result.size(); i++) {
-					if ((now - timespan) < result.get(i).getTimestamp()) {
-						startPos++;
-					}
+		if (values == null) {
+			return new ArrayList<TimestampedValue>();
+		}
+		synchronized (values) {
+			if (timespan == 0) {
+				List<TimestampedValue> result = new ArrayList<TimestampedValue>(
+						1);
+				if (values.size() > 0) {
+					result.add(values.get(0));
 				}
+				return result;
+			}
+			return TimestampedValue.newerThan(values, now - timespan);
+		}
+	}
+
+	/**
+	 * @return the longest history length in ms that a registered id reads,
+	 *         0 if there are none, Long.MAX_VALUE if an id didn't tell
+	 */
+	protected final long getMaxHistoryLength() {
+		long max = 0;
+		synchronized (mSensorInterface) {
+			for (String id : registeredValuePaths.keySet()) {
+				Long historyLength = registeredHistoryLengths.get(id);
+				max = Math.max(max, historyLength == null ? Long.MAX_VALUE
+						: historyLength);
 			}
+		}
+		return max;
+	}
+
+	/**
+	 * @param valuePath
+	 *            the value path
+	 * @return the longest history length in ms that an id registered for the
+	 *         value path reads, 0 if there are none, Long.MAX_VALUE if an id
+	 *         didn't tell
+	 */
+	protected final long getMaxHistoryLength(final String valuePath) {
+		Long max = mMaxHistoryLengths.get(valuePath);
+		return max == null ? 0 : max;
+	}
 
-			result = result.subList(0, startPos);
+	/**
+	 * Recomputes the longest history length of a value path, called with the
+	 * lock of the sensor interface held.
+	 */
+	private void updateMaxHistoryLength(final String valuePath) {
+		long max = 0;
+		List<String> ids = expressionIdsPerValuePath.get(valuePath);
+		if (ids != null) {
+			for (String id : ids) {
+				Long historyLength = registeredHistoryLengths.get(id);
+				max = Math.max(max, historyLength == null ? Long.MAX_VALUE
+						: historyLength);
+			}
 		}
-		return result;
+		Long previous = mMaxHistoryLengths.put(valuePath, max);
+		if (previous == null || previous != max) {
+			onMaxHistoryLengthChanged(valuePath, max);
+		}
+	}
+
+	/**
+	 * Called when the longest history length of a value path changes, as
+	 * expressions register and unregister. The default does nothing.
+	 * 
+	 * @param valuePath
+	 *            the value path
+	 * @param maxHistoryLength
+	 *            the new longest history length in ms
+	 */
+	protected void onMaxHistoryLengthChanged(final String valuePath,
+			final long maxHistoryLength) {
+	}
+
+	/**
+	 * Called when the last expression reading a value path unregisters, with
+	 * the lock of the sensor interface held. The default does nothing.
+	 * 
+	 * @param valuePath
+	 *            the value path
+	 */
+	protected void onValuePathUnused(final String valuePath) {
 	}
 
 	@Override
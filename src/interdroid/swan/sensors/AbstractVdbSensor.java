@@ -1,23 +1,43 @@
 package interdroid.swan.sensors;
 
+import interdroid.swan.swansong.HistoryReductionMode;
 import interdroid.swan.swansong.TimestampedValue;
 import interdroid.vdb.content.EntityUriBuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
 import org.apache.avro.Schema.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
 
 /**
  * Base class for sensors which store their data into a VDB database.
@@ -33,9 +53,100 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(AbstractVdbSensor.class);
 
+	/**
+	 * The number of rows after which the pending rows are written at once.
+	 */
+	private static final int WRITE_BATCH_SIZE = 32;
+
+	/**
+	 * The time in ms after which pending rows are written, when there are
+	 * fewer than {@link #WRITE_BATCH_SIZE}.
+	 */
+	private static final long WRITE_BATCH_DELAY = 500;
+
+	/**
+	 * The number of times writing a batch is retried before its rows are
+	 * dropped.
+	 */
+	private static final int MAX_WRITE_RETRIES = 3;
+
 	private long mReadings = 0;
 	private long mLastReadingTimestamp = 0;
 
+	/**
+	 * The rows that are not yet written to the database, oldest first.
+	 * Guarded by itself, together with the ids and value paths to notify,
+	 * the rows being written and the number of failed writes.
+	 */
+	private final List<ContentValues> mPendingRows = new ArrayList<ContentValues>();
+	private final Set<String> mPendingIds = new LinkedHashSet<String>();
+	private final Set<String> mPendingValuePaths = new LinkedHashSet<String>();
+	private boolean mFlushScheduled;
+	/** The rows taken by the write in progress, null if there is none. */
+	private ContentValues[] mWritingRows;
+	private int mFailedWrites;
+
+	/**
+	 * Serializes the writes of the pending rows. Readers don't take it, they
+	 * read the rows that are not written yet from the tail caches.
+	 */
+	private final Lock mFlushLock = new ReentrantLock();
+
+	/**
+	 * Held for writing while compaction replaces rows, and for reading while
+	 * readers query the database, so that readers don't see a half replaced
+	 * chunk.
+	 */
+	private final ReadWriteLock mCompactionLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Writes the pending rows, off the thread of the caller of putValues.
+	 */
+	private ScheduledExecutorService mWriter;
+
+	/**
+	 * The recent values of each field, filled as rows are put.
+	 */
+	private final Map<String, TailCache> mTailCaches = new HashMap<String, TailCache>();
+
+	/** Reads answered by the tail cache alone. */
+	private long mCacheHits;
+	/** Reads of which only the older part was queried. */
+	private long mCachePartialHits;
+	/** Reads answered by the database. */
+	private long mCacheMisses;
+
+	private static final long MINUTE = 60 * 1000;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	/**
+	 * The minimum time raw rows are kept. Windows longer than the raw
+	 * retention read rolled up rows for their older part.
+	 */
+	private static final long DEFAULT_RAW_RETENTION = DAY;
+	/** The minimum time per minute rollups are kept. */
+	private static final long DEFAULT_MINUTE_RETENTION = 7 * DAY;
+	/** The minimum time per hour rollups are kept. */
+	private static final long DEFAULT_HOUR_RETENTION = 30 * DAY;
+	/** The time between two compactions. */
+	private static final long COMPACTION_INTERVAL = 15 * MINUTE;
+
+	/**
+	 * Keeps the retention state across restarts of the sensor: the times
+	 * before which rows are rolled up per minute and per hour, and the
+	 * longest history length seen, so that the raw retention doesn't shrink
+	 * when expressions unregister.
+	 */
+	private SharedPreferences mRetentionPrefs;
+	private static final String MINUTE_ROLLED_UNTIL = "minuteRolledUntil";
+	private static final String HOUR_ROLLED_UNTIL = "hourRolledUntil";
+	private static final String MAX_HISTORY_LENGTH = "maxHistoryLength";
+	/** The number of rows before and after the last compaction. */
+	private long mRowsBeforeCompaction = -1;
+	private long mRowsAfterCompaction = -1;
+	private long mCompactions;
+
 	/**
 	 * Field which represents the timestamp for the reading.
 	 */
@@ -91,13 +202,48 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 		uri = EntityUriBuilder.nativeUri(schema.getNamespace(),
 				schema.getName());
 		LOG.debug("Sensor storing to URI: {}", uri);
+		mWriter = Executors.newSingleThreadScheduledExecutor();
+		mRetentionPrefs = getSharedPreferences(getClass().getSimpleName()
+				+ ".retention", Context.MODE_PRIVATE);
+		// rows stored before now are only in the database
+		long now = System.currentTimeMillis();
+		for (Field field : schema.getFields()) {
+			if (!field.name().equals(TIMESTAMP_FIELD)
+					&& !field.name().equals(EXPRESSION_ID)) {
+				mTailCaches.put(field.name(), new TailCache(now));
+			}
+		}
+		mWriter.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					compact(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					// a failure must not cancel later compactions
+					LOG.error("Compaction failed.", e);
+				}
+			}
+		}, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the rows that are still pending.
+	 */
+	@Override
+	protected void onDestroyStorage() {
+		mWriter.shutdown();
+		flushValues();
 	}
 
 	// / =-=-=-=- VDB Specific helper methods -=-=-=-=
 
 	/**
 	 * Stores the values to the content provider using this service as the
-	 * context. Fills in the timestamp and expiration before storing.
+	 * context. Fills in the timestamp and expiration before storing. The
+	 * values are written in a batch with other values, after at most
+	 * {@link #WRITE_BATCH_DELAY} ms, the expression is notified once they are
+	 * written. Until then they are returned by the reads of this sensor.
 	 * 
 	 * @param id
 	 *            the id
@@ -109,14 +255,17 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 	public final void putValues(final String id, final ContentValues values,
 			final long now) {
 		updateReadings(now);
-		notifyDataChangedForId(id);
 		values.put(EXPRESSION_ID, id);
-		putValues(getContentResolver(), uri, values, now);
+		values.put(TIMESTAMP_FIELD, now);
+		enqueue(values, id, null);
 	}
 
 	/**
 	 * Stores the values to the content provider using this service as the
-	 * context. Fills in the timestamp and expiration before storing.
+	 * context. Fills in the timestamp and expiration before storing. The
+	 * values are written in a batch with other values, after at most
+	 * {@link #WRITE_BATCH_DELAY} ms, the expressions are notified once they
+	 * are written. Until then they are returned by the reads of this sensor.
 	 * 
 	 * @param values
 	 *            the values to store
@@ -125,9 +274,188 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 	 */
 	public final void putValues(final ContentValues values, final long now) {
 		updateReadings(now);
-		putValues(getContentResolver(), uri, values, now);
+		List<String> valuePaths = new ArrayList<String>(values.size());
 		for (Entry<String, Object> key : values.valueSet()) {
-			notifyDataChanged(key.getKey());
+			valuePaths.add(key.getKey());
+		}
+		values.put(TIMESTAMP_FIELD, now);
+		enqueue(values, null, valuePaths);
+	}
+
+	/**
+	 * Adds a row to the pending rows and makes sure it gets written.
+	 */
+	private void enqueue(final ContentValues values, final String id,
+			final List<String> valuePaths) {
+		boolean flushNow;
+		boolean schedule;
+		cache(values, id);
+		synchronized (mPendingRows) {
+			// callers may reuse their values once putValues returns
+			mPendingRows.add(new ContentValues(values));
+			if (id != null) {
+				mPendingIds.add(id);
+			}
+			if (valuePaths != null) {
+				mPendingValuePaths.addAll(valuePaths);
+			}
+			flushNow = mPendingRows.size() == WRITE_BATCH_SIZE;
+			schedule = !mFlushScheduled;
+			mFlushScheduled = true;
+		}
+		Runnable flush = new Runnable() {
+
+			@Override
+			public void run() {
+				flushValues();
+			}
+		};
+		try {
+			if (flushNow) {
+				mWriter.execute(flush);
+			} else if (schedule) {
+				mWriter.schedule(flush, WRITE_BATCH_DELAY,
+						TimeUnit.MILLISECONDS);
+			}
+		} catch (RejectedExecutionException e) {
+			// the sensor is being destroyed, write on this thread
+			flushValues();
+		}
+	}
+
+	/**
+	 * Adds the fields of a row to their tail caches.
+	 */
+	private void cache(final ContentValues row, final String id) {
+		long timestamp = row.getAsLong(TIMESTAMP_FIELD);
+		for (Entry<String, Object> field : row.valueSet()) {
+			TailCache cache = mTailCaches.get(field.getKey());
+			if (cache != null) {
+				cache.add(timestamp,
+						getValue(row, field.getKey(), getType(field.getKey())),
+						id);
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending rows in a single bulk insert, and notifies the
+	 * expressions of the written rows. The rows are taken out of the pending
+	 * rows before writing, so that putValues doesn't wait for the write. Rows
+	 * that fail to be written are retried a few times, and then dropped
+	 * without notifying.
+	 */
+	private void flushValues() {
+		ContentValues[] rows;
+		String[] ids;
+		String[] valuePaths;
+		boolean written;
+		boolean retry = false;
+		boolean dropped = false;
+		mFlushLock.lock();
+		try {
+			synchronized (mPendingRows) {
+				mFlushScheduled = false;
+				if (mPendingRows.isEmpty()) {
+					return;
+				}
+				rows = mPendingRows.toArray(new ContentValues[mPendingRows
+						.size()]);
+				ids = mPendingIds.toArray(new String[mPendingIds.size()]);
+				valuePaths = mPendingValuePaths
+						.toArray(new String[mPendingValuePaths.size()]);
+				mPendingRows.clear();
+				mPendingIds.clear();
+				mPendingValuePaths.clear();
+				mWritingRows = rows;
+			}
+			try {
+				getContentResolver().bulkInsert(uri, rows);
+				written = true;
+			} catch (RuntimeException e) {
+				LOG.error("Failed to store " + rows.length + " rows.", e);
+				written = false;
+			}
+			synchronized (mPendingRows) {
+				mWritingRows = null;
+				if (written) {
+					mFailedWrites = 0;
+				} else if (++mFailedWrites <= MAX_WRITE_RETRIES) {
+					// before the rows added during the write
+					mPendingRows.addAll(0, Arrays.asList(rows));
+					mPendingIds.addAll(Arrays.asList(ids));
+					mPendingValuePaths.addAll(Arrays.asList(valuePaths));
+					retry = !mFlushScheduled;
+					mFlushScheduled = true;
+				} else {
+					mFailedWrites = 0;
+					dropped = true;
+				}
+			}
+		} finally {
+			mFlushLock.unlock();
+		}
+		if (!written) {
+			if (retry) {
+				scheduleFlush();
+			} else if (dropped) {
+				// readers must not see the rows anymore
+				LOG.error("Dropped " + rows.length + " rows.");
+				for (TailCache cache : mTailCaches.values()) {
+					cache.invalidate();
+				}
+			}
+			return;
+		}
+		if (ids.length > 0) {
+			notifyDataChangedForId(ids);
+		}
+		for (String valuePath : valuePaths) {
+			notifyDataChanged(valuePath);
+		}
+	}
+
+	/**
+	 * Schedules a write of the pending rows after the batching delay.
+	 */
+	private void scheduleFlush() {
+		try {
+			mWriter.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					flushValues();
+				}
+			}, WRITE_BATCH_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the sensor is being destroyed, the last flush writes the rows
+			synchronized (mPendingRows) {
+				mFlushScheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * @param until
+	 *            the time before which to look
+	 * @return true if there are rows before the time that are not written to
+	 *         the database yet
+	 */
+	private boolean hasUnwrittenValues(final long until) {
+		synchronized (mPendingRows) {
+			for (ContentValues row : mPendingRows) {
+				if (row.getAsLong(TIMESTAMP_FIELD) < until) {
+					return true;
+				}
+			}
+			if (mWritingRows != null) {
+				for (ContentValues row : mWritingRows) {
+					if (row.getAsLong(TIMESTAMP_FIELD) < until) {
+						return true;
+					}
+				}
+			}
+			return false;
 		}
 	}
 
@@ -173,16 +501,107 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 		return getValuesForValuePath(fieldName, id, now, timespan);
 	}
 
+	/**
+	 * Reads the values of a field. Recent values come from the tail cache of
+	 * the field, only values older than the cache are queried.
+	 */
 	public List<TimestampedValue> getValuesForValuePath(final String fieldName,
 			String id, final long now, final long timespan) {
 		Type fieldType = getType(fieldName);
+		String expressionId = schema.getField(EXPRESSION_ID) != null ? id
+				: null;
+		TailCache cache = mTailCaches.get(fieldName);
+		List<TimestampedValue> cached = null;
+		long until = Long.MAX_VALUE;
+		if (cache != null) {
+			if (timespan == 0) {
+				TimestampedValue newest = cache.newest(expressionId);
+				if (newest != null) {
+					countCacheRead(true, false);
+					cached = new ArrayList<TimestampedValue>(1);
+					cached.add(newest);
+					return cached;
+				}
+				until = cache.getCompleteSince();
+			} else {
+				cached = new ArrayList<TimestampedValue>();
+				until = cache.window(cached, expressionId, now - timespan);
+				if (until <= now - timespan) {
+					countCacheRead(true, false);
+					return cached;
+				}
+			}
+		}
+		countCacheRead(false, cached != null && cached.size() > 0);
+		if (hasUnwrittenValues(until)) {
+			// the cache doesn't have all unwritten rows, write them before
+			// querying
+			flushValues();
+		}
+		List<TimestampedValue> ret;
+		mCompactionLock.readLock().lock();
+		try {
+			ret = queryValues(fieldName, fieldType, expressionId, now,
+					timespan, until);
+		} finally {
+			mCompactionLock.readLock().unlock();
+		}
+		if (cached != null) {
+			// the cached values are newer than the queried values
+			ret.addAll(cached);
+		}
+		return ret;
+	}
+
+	private synchronized void countCacheRead(final boolean hit,
+			final boolean partial) {
+		if (hit) {
+			mCacheHits++;
+		} else if (partial) {
+			mCachePartialHits++;
+		} else {
+			mCacheMisses++;
+		}
+	}
+
+	/**
+	 * @return the value of the field in the row, of the type of the field
+	 */
+	private static Object getValue(final ContentValues row,
+			final String fieldName, final Type fieldType) {
+		switch (fieldType) {
+		case INT:
+			return row.getAsInteger(fieldName);
+		case LONG:
+			return row.getAsLong(fieldName);
+		case FLOAT:
+			return row.getAsFloat(fieldName);
+		case DOUBLE:
+			return row.getAsDouble(fieldName);
+		case FIXED:
+		case BYTES:
+			return row.getAsByteArray(fieldName);
+		default:
+			return row.getAsString(fieldName);
+		}
+	}
+
+	/**
+	 * @return the values of the field in the database before until, oldest
+	 *         first
+	 */
+	private List<TimestampedValue> queryValues(final String fieldName,
+			final Type fieldType, final String id, final long now,
+			final long timespan, final long until) {
 		Cursor values;
-		if (schema.getField(EXPRESSION_ID) != null) {
+		if (until == Long.MAX_VALUE) {
 			values = getValuesCursor(this, uri, new String[] { fieldName },
 					now, timespan, id);
 		} else {
 			values = getValuesCursor(this, uri, new String[] { fieldName },
-					now, timespan, null);
+					now, timespan, id, until,
+					timespan <= 0 ? TIMESTAMP_FIELD + " DESC LIMIT 1"
+							: TIMESTAMP_FIELD + " ASC");
 		}
 		List<TimestampedValue> ret = null;
 		if (values != null && values.moveToFirst()) {
@@ -262,8 +681,20 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 
 		LOG.debug("Projection: {} {}", projection, projection.length);
 
+		// If timespan is zero we just pull the last one in time
+		return query(context, uri, projection, now, timespan, id,
+				Long.MAX_VALUE, timespan <= 0 ? TIMESTAMP_FIELD + " DESC LIMIT 1"
+						: TIMESTAMP_FIELD + " ASC");
+	}
+
+	/**
+	 * Queries the rows within the timespan that are older than until.
+	 */
+	private static Cursor query(final Context context, final Uri uri,
+			final String[] projection, final long now, final long timespan,
+			final String id, final long until, final String sortOrder) {
 		String where = null;
-		String[] whereArgs = null;
+		List<String> whereArgs = new ArrayList<String>(3);
 
 		// Build where args
 		if (id != null) {
@@ -272,37 +703,434 @@ public abstract class AbstractVdbSensor extends AbstractSensorBase {
 			// accept expression ids that are null.
 			where = "( " + EXPRESSION_ID + "=? OR " + EXPRESSION_ID
 					+ " is null ) ";
+			whereArgs.add(id);
+		}
+
+		if (timespan > 0) {
+			where = (where == null ? "" : where + " AND ") + TIMESTAMP_FIELD
+					+ " >= ? ";
+			whereArgs.add(String.valueOf(now - timespan));
+		}
+		if (until != Long.MAX_VALUE) {
+			where = (where == null ? "" : where + " AND ") + TIMESTAMP_FIELD
+					+ " < ? ";
+			whereArgs.add(String.valueOf(until));
+		}
+		return context.getContentResolver().query(uri, projection, where,
+				whereArgs.isEmpty() ? null : whereArgs
+						.toArray(new String[whereArgs.size()]), sortOrder);
+	}
 
-			if (timespan <= 0) {
-				whereArgs = new String[] { id };
+	/**
+	 * Reduces MIN, MAX and MEAN in the database, other modes and windows that
+	 * the tail cache covers are reduced in memory.
+	 */
+	@Override
+	public List<TimestampedValue> getReducedValues(final String id,
+			final String mode, final long now, final long timespan) {
+		HistoryReductionMode reduction = HistoryReductionMode.parse(mode);
+		String fieldName = registeredValuePaths.get(id);
+		TailCache cache = mTailCaches.get(fieldName);
+		// the database doesn't have the pending rows yet
+		if (timespan <= 0 || hasUnwrittenValues(Long.MAX_VALUE)
+				|| (cache != null && cache.getCompleteSince() <= now - timespan)
+				|| (reduction != HistoryReductionMode.MAX
+						&& reduction != HistoryReductionMode.MIN && reduction != HistoryReductionMode.MEAN)) {
+			return super.getReducedValues(id, mode, now, timespan);
+		}
+		String expressionId = schema.getField(EXPRESSION_ID) != null ? id
+				: null;
+		Cursor aggregate = null;
+		Cursor determining = null;
+		mCompactionLock.readLock().lock();
+		try {
+			aggregate = query(this, uri, new String[] { "COUNT(*)",
+					"MIN(" + TIMESTAMP_FIELD + ")", "AVG(" + fieldName + ")" },
+					now, timespan, expressionId, Long.MAX_VALUE, null);
+			if (aggregate == null || !aggregate.moveToFirst()) {
+				return super.getReducedValues(id, mode, now, timespan);
+			}
+			int count = aggregate.getInt(0);
+			List<TimestampedValue> result = new ArrayList<TimestampedValue>(2);
+			if (count == 0) {
+				return result;
+			}
+			long oldest = aggregate.getLong(1);
+			if (reduction == HistoryReductionMode.MEAN) {
+				// the mean has the timestamp of the first value, the oldest
+				result.add(new TimestampedValue(aggregate.getDouble(2), oldest));
 			} else {
-				whereArgs = new String[] { id, String.valueOf(now - timespan) };
+				// the first of the values that are equal determines the result
+				determining = getValuesCursor(this, uri,
+						new String[] { fieldName }, now, timespan,
+						expressionId, Long.MAX_VALUE, fieldName
+								+ (reduction == HistoryReductionMode.MAX ? " DESC"
+										: " ASC") + ", " + TIMESTAMP_FIELD
+								+ " ASC LIMIT 1");
+				if (determining == null || !determining.moveToFirst()) {
+					return super.getReducedValues(id, mode, now, timespan);
+				}
+				result.add(new TimestampedValue(getValue(determining, 1,
+						getType(fieldName)), determining.getLong(0)));
 			}
-		} else {
-			if (timespan > 0) {
-				whereArgs = new String[] { String.valueOf(now - timespan) };
+			result.add(new TimestampedValue(count, oldest));
+			return result;
+		} catch (RuntimeException e) {
+			// the content provider may not support aggregates
+			LOG.warn("Reduction in database failed, reducing in memory.", e);
+			return super.getReducedValues(id, mode, now, timespan);
+		} finally {
+			if (aggregate != null) {
+				aggregate.close();
+			}
+			if (determining != null) {
+				determining.close();
 			}
+			mCompactionLock.readLock().unlock();
 		}
+	}
 
-		Cursor c = null;
-		if (timespan <= 0) {
+	/**
+	 * @return the value in the column, of the type of the field
+	 */
+	private static Object getValue(final Cursor cursor, final int column,
+			final Type fieldType) {
+		switch (fieldType) {
+		case INT:
+			return cursor.getInt(column);
+		case LONG:
+			return cursor.getLong(column);
+		case FLOAT:
+			return cursor.getFloat(column);
+		case DOUBLE:
+			return cursor.getDouble(column);
+		default:
+			return cursor.getString(column);
+		}
+	}
 
-			c = context.getContentResolver().query(uri, projection, where,
-					whereArgs,
-					// If timespan is zero we just pull the last one in time
-					TIMESTAMP_FIELD + " DESC LIMIT 1");
+	private static Cursor getValuesCursor(final Context context,
+			final Uri uri, final String[] values, final long now,
+			final long timespan, final String id, final long until,
+			final String sortOrder) {
+		String[] projection = new String[values.length + 1];
+		System.arraycopy(values, 0, projection, 1, values.length);
+		projection[0] = TIMESTAMP_FIELD;
+		return query(context, uri, projection, now, timespan, id, until,
+				sortOrder);
+	}
 
-		} else {
+	// =-=-=-=- Retention -=-=-=-=
 
-			c = context.getContentResolver().query(
-					uri,
-					projection,
-					(where == null ? "" : where + " AND ") + TIMESTAMP_FIELD
-							+ " >= ? ", whereArgs, TIMESTAMP_FIELD + " ASC");
+	/**
+	 * @return the time in ms that raw rows are kept, by default the longest
+	 *         history length any expression registered with, and at least a
+	 *         day
+	 */
+	protected long getRawRetention() {
+		long maxHistoryLength = mRetentionPrefs.getLong(MAX_HISTORY_LENGTH, 0);
+		long current = getMaxHistoryLength();
+		if (current == Long.MAX_VALUE) {
+			// an expression didn't tell, keep everything while it's registered
+			return current;
+		}
+		if (current > maxHistoryLength) {
+			maxHistoryLength = current;
+			mRetentionPrefs.edit().putLong(MAX_HISTORY_LENGTH, current)
+					.commit();
+		}
+		return Math.max(DEFAULT_RAW_RETENTION, maxHistoryLength);
+	}
+
+	/**
+	 * @return the time in ms that rows are kept at a resolution of a minute,
+	 *         by default a week
+	 */
+	protected long getMinuteRetention() {
+		return Math.max(DEFAULT_MINUTE_RETENTION, getRawRetention());
+	}
+
+	/**
+	 * @return the time in ms that rows are kept at a resolution of an hour,
+	 *         older rows are deleted, by default 30 days
+	 */
+	protected long getHourRetention() {
+		return Math.max(DEFAULT_HOUR_RETENTION, getMinuteRetention());
+	}
+
+	/**
+	 * Applies the retention policy. Rows older than the hour retention are
+	 * deleted, rows older than the minute retention are rolled up per hour
+	 * and rows older than the raw retention are rolled up per minute. Runs on
+	 * the writer thread.
+	 *
+	 * @param now
+	 *            the current time
+	 */
+	private void compact(final long now) {
+		long before = countRows();
+		long rawRetention = getRawRetention();
+		long minuteRetention = getMinuteRetention();
+		long hourRetention = getHourRetention();
+		mCompactionLock.writeLock().lock();
+		try {
+			getContentResolver().delete(uri, TIMESTAMP_FIELD + " < ?",
+					new String[] { String.valueOf(now - hourRetention) });
+		} finally {
+			mCompactionLock.writeLock().unlock();
+		}
+		long oldest = queryOldestTimestamp();
+		if (oldest >= 0) {
+			long hourRolledUntil = mRetentionPrefs.getLong(HOUR_ROLLED_UNTIL,
+					0);
+			long hourStart = Math.max(hourRolledUntil, floor(oldest, HOUR));
+			long hourEnd = floor(now - minuteRetention, HOUR);
+			if (hourStart < hourEnd) {
+				rollUp(hourStart, hourEnd, HOUR, DAY);
+				hourRolledUntil = hourEnd;
+				mRetentionPrefs.edit().putLong(HOUR_ROLLED_UNTIL, hourEnd)
+						.commit();
+			}
+			// rows rolled up per hour don't need to be rolled up per minute
+			long minuteStart = Math.max(
+					Math.max(mRetentionPrefs.getLong(MINUTE_ROLLED_UNTIL, 0),
+							hourRolledUntil), floor(oldest, MINUTE));
+			long minuteEnd = floor(now - rawRetention, MINUTE);
+			if (minuteStart < minuteEnd) {
+				rollUp(minuteStart, minuteEnd, MINUTE, HOUR);
+				mRetentionPrefs.edit().putLong(MINUTE_ROLLED_UNTIL, minuteEnd)
+						.commit();
+			}
+		}
+		long after = countRows();
+		synchronized (this) {
+			mRowsBeforeCompaction = before;
+			mRowsAfterCompaction = after;
+			mCompactions++;
+		}
+		LOG.debug("Compacted {} rows into {}", before, after);
+	}
 
+	/**
+	 * Rolls up the rows between from and until into one row per bucket and
+	 * expression id, one chunk at a time.
+	 */
+	private void rollUp(final long from, final long until, final long bucket,
+			final long chunk) {
+		for (long start = from; start < until; start += chunk) {
+			rollUpChunk(start, Math.min(start + chunk, until), bucket);
 		}
+	}
 
-		return c;
+	/**
+	 * Replaces the rows of each bucket between start and end by a single row
+	 * at the start of the bucket. Numeric fields hold the mean of the bucket,
+	 * other fields the last value.
+	 */
+	private void rollUpChunk(final long start, final long end,
+			final long bucket) {
+		List<Field> fields = new ArrayList<Field>();
+		for (Field field : schema.getFields()) {
+			if (!field.name().equals(TIMESTAMP_FIELD)) {
+				fields.add(field);
+			}
+		}
+		String[] projection = new String[fields.size() + 1];
+		projection[0] = TIMESTAMP_FIELD;
+		for (int i = 0; i < fields.size(); i++) {
+			projection[i + 1] = fields.get(i).name();
+		}
+		Map<String, Rollup> rollups = new LinkedHashMap<String, Rollup>();
+		int rows = 0;
+		Cursor cursor = query(this, uri, projection, end, end - start, null,
+				end, TIMESTAMP_FIELD + " ASC");
+		if (cursor == null) {
+			return;
+		}
+		try {
+			int idColumn = cursor.getColumnIndex(EXPRESSION_ID);
+			while (cursor.moveToNext()) {
+				long timestamp = floor(cursor.getLong(0), bucket);
+				String id = idColumn < 0 ? null : cursor.getString(idColumn);
+				String key = timestamp + "/" + id;
+				Rollup rollup = rollups.get(key);
+				if (rollup == null) {
+					rollup = new Rollup(timestamp, fields.size());
+					rollups.put(key, rollup);
+				}
+				rollup.add(cursor, fields);
+				rows++;
+			}
+		} finally {
+			cursor.close();
+		}
+		if (rows == rollups.size()) {
+			// already one row per bucket
+			return;
+		}
+		// replace the chunk in a single batch, so it isn't lost halfway
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+				rollups.size() + 1);
+		operations.add(ContentProviderOperation
+				.newDelete(uri)
+				.withSelection(
+						TIMESTAMP_FIELD + " >= ? AND " + TIMESTAMP_FIELD
+								+ " < ?",
+						new String[] { String.valueOf(start),
+								String.valueOf(end) }).build());
+		for (Rollup rollup : rollups.values()) {
+			operations.add(ContentProviderOperation.newInsert(uri)
+					.withValues(rollup.toContentValues(fields)).build());
+		}
+		// readers must not see the chunk while it is replaced
+		mCompactionLock.writeLock().lock();
+		try {
+			getContentResolver().applyBatch(uri.getAuthority(), operations);
+		} catch (RemoteException e) {
+			throw new RuntimeException("Failed to roll up rows.", e);
+		} catch (OperationApplicationException e) {
+			throw new RuntimeException("Failed to roll up rows.", e);
+		} finally {
+			mCompactionLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The rows of a bucket that are being rolled up into one row.
+	 */
+	private static class Rollup {
+		private final long mTimestamp;
+		private final double[] mSums;
+		private final int[] mCounts;
+		private final Object[] mLast;
+
+		Rollup(final long timestamp, final int fields) {
+			mTimestamp = timestamp;
+			mSums = new double[fields];
+			mCounts = new int[fields];
+			mLast = new Object[fields];
+		}
+
+		void add(final Cursor cursor, final List<Field> fields) {
+			for (int i = 0; i < fields.size(); i++) {
+				int column = i + 1;
+				if (cursor.isNull(column)) {
+					continue;
+				}
+				switch (fields.get(i).schema().getType()) {
+				case INT:
+				case LONG:
+				case FLOAT:
+				case DOUBLE:
+					mSums[i] += cursor.getDouble(column);
+					mCounts[i]++;
+					break;
+				case BOOLEAN:
+					mLast[i] = cursor.getInt(column) != 0;
+					break;
+				case FIXED:
+				case BYTES:
+					mLast[i] = cursor.getBlob(column);
+					break;
+				default:
+					mLast[i] = cursor.getString(column);
+					break;
+				}
+			}
+		}
+
+		ContentValues toContentValues(final List<Field> fields) {
+			ContentValues values = new ContentValues();
+			values.put(TIMESTAMP_FIELD, mTimestamp);
+			for (int i = 0; i < fields.size(); i++) {
+				String name = fields.get(i).name();
+				if (mCounts[i] > 0) {
+					double mean = mSums[i] / mCounts[i];
+					switch (fields.get(i).schema().getType()) {
+					case INT:
+						values.put(name, (int) Math.round(mean));
+						break;
+					case LONG:
+						values.put(name, Math.round(mean));
+						break;
+					case FLOAT:
+						values.put(name, (float) mean);
+						break;
+					default:
+						values.put(name, mean);
+						break;
+					}
+				} else if (mLast[i] instanceof Boolean) {
+					values.put(name, (Boolean) mLast[i]);
+				} else if (mLast[i] instanceof byte[]) {
+					values.put(name, (byte[]) mLast[i]);
+				} else if (mLast[i] != null) {
+					values.put(name, (String) mLast[i]);
+				}
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * @return the timestamp of the oldest row, or -1 if there are none
+	 */
+	private long queryOldestTimestamp() {
+		Cursor cursor = getContentResolver().query(uri,
+				new String[] { "MIN(" + TIMESTAMP_FIELD + ")" }, null, null,
+				null);
+		try {
+			return cursor != null && cursor.moveToFirst()
+					&& !cursor.isNull(0) ? cursor.getLong(0) : -1;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows in the database, or -1 if unknown
+	 */
+	private long countRows() {
+		Cursor cursor = getContentResolver().query(uri,
+				new String[] { "COUNT(*)" }, null, null, null);
+		try {
+			return cursor != null && cursor.moveToFirst() ? cursor.getLong(0)
+					: -1;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the time rounded down to a multiple of the unit
+	 */
+	private static long floor(final long time, final long unit) {
+		return time <= 0 ? 0 : time - time % unit;
+	}
+
+	@Override
+	protected void addInfo(final Bundle info) {
+		long hits;
+		long partialHits;
+		long misses;
+		synchronized (this) {
+			hits = mCacheHits;
+			partialHits = mCachePartialHits;
+			misses = mCacheMisses;
+			info.putLong("storedRows", mRowsAfterCompaction);
+			info.putLong("storedRowsBeforeCompaction", mRowsBeforeCompaction);
+			info.putLong("compactions", mCompactions);
+		}
+		long reads = hits + partialHits + misses;
+		info.putLong("tailCacheHits", hits);
+		info.putLong("tailCachePartialHits", partialHits);
+		info.putLong("tailCacheMisses", misses);
+		info.putDouble("tailCacheHitRatio", reads == 0 ? 0 : (double) hits
+				/ reads);
 	}
 
 	@Override
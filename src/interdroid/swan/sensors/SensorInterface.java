@@ -1,11 +1,13 @@
 package interdroid.swan.sensors;
 
+import interdroid.swan.swansong.HistoryReductionMode;
 import interdroid.swan.swansong.TimestampedValue;
 
 import java.io.IOException;
 import java.util.List;
 
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 
 /**
  * This is the interface that sensors which make use of the AbstractSensorBase
@@ -18,6 +20,14 @@ public interface SensorInterface {
 
 	public static final String ACTION_NOTIFY = "interdroid.swan.NOTIFY";
 
+	/**
+	 * The version of the Sensor interface that sensors built against this
+	 * source implement, returned by getInterfaceVersion. Sensors built
+	 * against the original interface don't know that call and answer 0, the
+	 * engine then only uses the calls of the original interface.
+	 */
+	public static final int INTERFACE_VERSION = 1;
+
 	/**
 	 * Handle registering an expression.
 	 * 
@@ -75,6 +85,48 @@ public interface SensorInterface {
 	 * @return
 	 */
 	long getStartUpTime(String id);
+
+	/**
+	 * Gets the values of the given id that are within the time span and newer
+	 * than since, in the same order as
+	 * {@link #getValues(String, long, long)}. Used by the engine to only fetch
+	 * the values it hasn't seen yet.
+	 * 
+	 * @param id
+	 * @param since
+	 *            the timestamp of the newest value the caller already has
+	 * @param now
+	 * @param timespan
+	 * @return the new values
+	 */
+	List<TimestampedValue> getValuesSince(String id, long since, long now,
+			long timespan);
+
+	/**
+	 * Reduces the values of the given id within the time span in the sensor,
+	 * so that only the reduced value has to be sent to the engine.
+	 * 
+	 * @param id
+	 * @param mode
+	 *            the parse string of the {@link HistoryReductionMode}
+	 * @param now
+	 * @param timespan
+	 * @return an empty list if there are no values, otherwise the reduced
+	 *         value followed by a value holding the number of values in the
+	 *         time span, with the timestamp of the oldest of them
+	 */
+	List<TimestampedValue> getReducedValues(String id, String mode, long now,
+			long timespan);
+
+	/**
+	 * Shares the history of the value path of the given id through memory,
+	 * see {@link SharedValues}.
+	 * 
+	 * @param id
+	 * @return the descriptor of the shared segment, or null if the values
+	 *         can't be shared
+	 */
+	ParcelFileDescriptor getSharedValues(String id);
 	
 	
 	double getAverageSensingRate();
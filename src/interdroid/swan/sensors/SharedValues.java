@@ -0,0 +1,278 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * A memory mapped segment through which a sensor shares the numeric history
+ * of a value path with the evaluation engine. The sensor appends to the
+ * segment as it adds values to its {@link ValueHistory}, the engine maps the
+ * same file read only and reads its windows directly from it, instead of
+ * having every value parceled through Binder. Only the file descriptor goes
+ * through Binder, once per registration.
+ *
+ * The segment is a circular buffer of (index, timestamp, value) records
+ * behind a small header:
+ * <ul>
+ * <li>a sequence number, odd while the sensor is writing,</li>
+ * <li>the number of records ever appended (the head),</li>
+ * <li>the number of records ever removed (the tail),</li>
+ * <li>the value type and the capacity in records.</li>
+ * </ul>
+ * Readers retry when the sequence changed while they were reading, and give
+ * up (returning null, so that the caller falls back to Binder) when the
+ * segment can't answer, for instance because it holds non numeric values or
+ * because the window reaches further back than the segment.
+ *
+ * Puts and gets on a mapped buffer are plain memory accesses, there is no
+ * ordering between the processes, so a reader can see the header and the
+ * records in any state. Every record therefore also holds the index at which
+ * it was appended, which the writer clears before and sets after writing the
+ * record, and readers check the index on both sides of every record they read
+ * and the header against itself, and retry when anything doesn't match. This
+ * makes torn reads unlikely but not impossible on weakly ordered processors,
+ * so sharing is best-effort and is off by default, see
+ * {@link interdroid.swan.engine.EvaluationEngineService#PREF_SHARED_VALUES}.
+ */
+public class SharedValues {
+
+	/** The capacity in records of segments created by memory sensors. */
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	/** The type of a segment that can't be used anymore. */
+	static final int INVALID = -1;
+
+	private static final int SEQUENCE = 0;
+	private static final int HEAD = 8;
+	private static final int TAIL = 16;
+	private static final int TYPE = 24;
+	private static final int CAPACITY = 28;
+	private static final int RECORDS = 32;
+	private static final int RECORD_SIZE = 24;
+	/** The offsets of the fields of a record. */
+	private static final int INDEX = 0;
+	private static final int TIMESTAMP = 8;
+	private static final int VALUE = 16;
+
+	private static final int MAX_RETRIES = 8;
+
+	private final MappedByteBuffer mBuffer;
+	private final int mCapacity;
+	// only used by the writer
+	private long mSequence;
+	private long mHead;
+
+	private SharedValues(MappedByteBuffer buffer, int capacity) {
+		mBuffer = buffer;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Creates a new segment for writing. An existing file is replaced, so
+	 * that readers of an older segment don't see it change under them.
+	 *
+	 * @param file
+	 *            the file backing the segment
+	 * @param capacity
+	 *            the number of records in the segment
+	 * @return the segment
+	 * @throws IOException
+	 *             if the file can't be created or mapped
+	 */
+	public static SharedValues create(File file, int capacity)
+			throws IOException {
+		file.delete();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long size = RECORDS + (long) capacity * RECORD_SIZE;
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(TYPE, ValueHistory.EMPTY);
+			buffer.putInt(CAPACITY, capacity);
+			return new SharedValues(buffer, capacity);
+		} finally {
+			// the mapping stays valid after closing the file
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps a segment shared by a sensor for reading.
+	 *
+	 * @param descriptor
+	 *            the descriptor of the file, closed by this method
+	 * @return the segment
+	 * @throws IOException
+	 *             if the file can't be mapped
+	 */
+	public static SharedValues open(ParcelFileDescriptor descriptor)
+			throws IOException {
+		FileInputStream in = new FileInputStream(
+				descriptor.getFileDescriptor());
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int capacity = buffer.getInt(CAPACITY);
+			if (buffer.capacity() < RECORDS + (long) capacity * RECORD_SIZE) {
+				throw new IOException("Truncated segment");
+			}
+			return new SharedValues(buffer, capacity);
+		} finally {
+			in.close();
+			descriptor.close();
+		}
+	}
+
+	// =-=-=-=- Writer, called with the lock of the value history -=-=-=-=
+
+	void append(long timestamp, int type, long bits) {
+		begin();
+		int record = offset(mHead);
+		mBuffer.putLong(record + INDEX, -1);
+		mBuffer.putLong(record + TIMESTAMP, timestamp);
+		mBuffer.putLong(record + VALUE, bits);
+		mBuffer.putLong(record + INDEX, mHead);
+		mHead++;
+		mBuffer.putLong(HEAD, mHead);
+		if (mBuffer.getInt(TYPE) != type) {
+			mBuffer.putInt(TYPE, type);
+		}
+		end();
+	}
+
+	/**
+	 * Sets the number of records that are still in the history, older
+	 * records are no longer valid.
+	 */
+	void retain(int size) {
+		begin();
+		mBuffer.putLong(TAIL, mHead - size);
+		end();
+	}
+
+	/**
+	 * Marks the segment as unusable, readers fall back to Binder.
+	 */
+	void invalidate() {
+		begin();
+		mBuffer.putInt(TYPE, INVALID);
+		end();
+	}
+
+	private void begin() {
+		mBuffer.putLong(SEQUENCE, ++mSequence);
+	}
+
+	private void end() {
+		mBuffer.putLong(SEQUENCE, ++mSequence);
+	}
+
+	// =-=-=-=- Reader -=-=-=-=
+
+	/**
+	 * Reads the values newer than now - timespan, newest first, or the newest
+	 * value if the timespan is 0.
+	 *
+	 * @param now
+	 *            the current time
+	 * @param timespan
+	 *            the time span in ms
+	 * @return the values, or null if the segment can't provide them
+	 */
+	public List<TimestampedValue> read(long now, long timespan) {
+		retry: for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+			long sequence = mBuffer.getLong(SEQUENCE);
+			if ((sequence & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			int type = mBuffer.getInt(TYPE);
+			long head = mBuffer.getLong(HEAD);
+			long tail = mBuffer.getLong(TAIL);
+			if (type == INVALID) {
+				return null;
+			}
+			if (tail < 0 || tail > head) {
+				// the head and the tail are from different writes
+				continue;
+			}
+			// records before the first are overwritten
+			long first = Math.max(tail, head - mCapacity);
+			long since = now - timespan;
+			long low = first;
+			long high = head;
+			if (timespan == 0) {
+				low = Math.max(first, head - 1);
+			} else {
+				while (low < high) {
+					long middle = (low + high) >>> 1;
+					long timestamp = timestamp(middle);
+					if (timestamp == Long.MIN_VALUE) {
+						continue retry;
+					}
+					if (timestamp > since) {
+						high = middle;
+					} else {
+						low = middle + 1;
+					}
+				}
+				if (low == first && first > tail) {
+					// the window may reach into overwritten records
+					return null;
+				}
+			}
+			List<TimestampedValue> result = new ArrayList<TimestampedValue>(
+					(int) (head - low));
+			for (long i = head - 1; i >= low; i--) {
+				int record = offset(i);
+				if (mBuffer.getLong(record + INDEX) != i) {
+					continue retry;
+				}
+				long timestamp = mBuffer.getLong(record + TIMESTAMP);
+				long bits = mBuffer.getLong(record + VALUE);
+				if (mBuffer.getLong(record + INDEX) != i) {
+					continue retry;
+				}
+				result.add(new TimestampedValue(ValueHistory.box(type, bits),
+						timestamp));
+			}
+			if (mBuffer.getLong(SEQUENCE) == sequence) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the timestamp of a record, or Long.MIN_VALUE if the record
+	 *         isn't the record appended at the index
+	 */
+	private long timestamp(long index) {
+		int record = offset(index);
+		if (mBuffer.getLong(record + INDEX) != index) {
+			return Long.MIN_VALUE;
+		}
+		long timestamp = mBuffer.getLong(record + TIMESTAMP);
+		if (mBuffer.getLong(record + INDEX) != index) {
+			return Long.MIN_VALUE;
+		}
+		return timestamp;
+	}
+
+	private int offset(long index) {
+		return RECORDS + (int) (index % mCapacity) * RECORD_SIZE;
+	}
+
+}
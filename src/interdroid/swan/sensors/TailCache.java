@@ -0,0 +1,162 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.List;
+
+/**
+ * The most recent values of a single field of a VDB sensor, kept in memory as
+ * they are written, so that reads of recent windows and of the latest value
+ * don't have to query the content provider.
+ *
+ * The cache is complete from a point in time on: every row written with a
+ * timestamp at or after {@link #getCompleteSince()} is in the cache. That point
+ * moves forward when the oldest values are dropped to make room, older values
+ * have to be read from the database.
+ *
+ * Values are expected to be added in time order, a value older than the
+ * newest cached value empties the cache.
+ */
+class TailCache {
+
+	/** The number of values kept per field. */
+	static final int CAPACITY = 256;
+
+	private final long[] mTimestamps = new long[CAPACITY];
+	private final Object[] mValues = new Object[CAPACITY];
+	/** The expression ids of the rows, null for rows of all expressions. */
+	private final String[] mIds = new String[CAPACITY];
+	/** The position of the oldest value. */
+	private int mTail;
+	private int mSize;
+	private long mCompleteSince;
+
+	/**
+	 * @param completeSince
+	 *            the time from which on all values will be added to the cache
+	 */
+	TailCache(final long completeSince) {
+		mCompleteSince = completeSince;
+	}
+
+	/**
+	 * Adds a value as the newest value.
+	 *
+	 * @param timestamp
+	 *            the time of the value
+	 * @param value
+	 *            the value
+	 * @param id
+	 *            the expression id of the row, or null
+	 */
+	synchronized void add(final long timestamp, final Object value,
+			final String id) {
+		if (timestamp < mCompleteSince) {
+			// the database has it, the cache doesn't claim this time
+			return;
+		}
+		if (mSize > 0 && timestamp < mTimestamps[index(mSize - 1)]) {
+			// out of order, start over after the newest value
+			mCompleteSince = mTimestamps[index(mSize - 1)] + 1;
+			clear();
+			return;
+		}
+		if (mSize == CAPACITY) {
+			mCompleteSince = Math.max(mCompleteSince, mTimestamps[mTail] + 1);
+			mValues[mTail] = null;
+			mTail = (mTail + 1) % CAPACITY;
+			mSize--;
+		}
+		int head = index(mSize);
+		mTimestamps[head] = timestamp;
+		mValues[head] = value;
+		mIds[head] = id;
+		mSize++;
+	}
+
+	/**
+	 * @return the time from which on the cache has all values
+	 */
+	synchronized long getCompleteSince() {
+		return mCompleteSince;
+	}
+
+	/**
+	 * @param id
+	 *            the expression id, or null for values of all expressions
+	 * @return the newest value for the expression, or null if the cache
+	 *         doesn't have one
+	 */
+	synchronized TimestampedValue newest(final String id) {
+		for (int i = mSize - 1; i >= 0; i--) {
+			int index = index(i);
+			if (matches(index, id)) {
+				return new TimestampedValue(mValues[index], mTimestamps[index]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the cached values at or after since to the result, oldest first.
+	 *
+	 * @param result
+	 *            the list to add to
+	 * @param id
+	 *            the expression id, or null for values of all expressions
+	 * @param since
+	 *            the start of the window
+	 * @return the time from which on the result is complete, if it is after
+	 *         since the older values have to be read from the database
+	 */
+	synchronized long window(final List<TimestampedValue> result,
+			final String id, final long since) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (mTimestamps[index(middle)] >= since) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		for (int i = low; i < mSize; i++) {
+			int index = index(i);
+			if (mTimestamps[index] >= mCompleteSince && matches(index, id)) {
+				result.add(new TimestampedValue(mValues[index],
+						mTimestamps[index]));
+			}
+		}
+		return mCompleteSince;
+	}
+
+	/**
+	 * Empties the cache, values up to the newest cached value have to be read
+	 * from the database again.
+	 */
+	synchronized void invalidate() {
+		if (mSize > 0) {
+			mCompleteSince = Math.max(mCompleteSince,
+					mTimestamps[index(mSize - 1)] + 1);
+		}
+		clear();
+	}
+
+	private boolean matches(final int index, final String id) {
+		return id == null || mIds[index] == null || id.equals(mIds[index]);
+	}
+
+	private int index(final int position) {
+		return (mTail + position) % CAPACITY;
+	}
+
+	private void clear() {
+		for (int i = 0; i < mSize; i++) {
+			mValues[index(i)] = null;
+		}
+		mTail = 0;
+		mSize = 0;
+	}
+
+}
@@ -0,0 +1,461 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The history of a single value path of a memory sensor, kept in a circular
+ * buffer. Timestamps are stored in a long[] and numeric values in a double[]
+ * or long[] column, so that adding a value doesn't box it and adding and
+ * trimming take amortized constant time. The buffer grows when it is full
+ * and shrinks when trimming left most of it unused. Values are only boxed into
+ * {@link TimestampedValue}s when they are read, with the type they were added
+ * with. Histories that mix value types fall back to an Object[] column.
+ *
+ * Readers and writers are serialized with the lock of the history. Readers
+ * only hold it while they copy the values in their window, and writers while
+ * they add or trim in constant time, so neither waits long for the other.
+ */
+public class ValueHistory {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The time in ms after which an aggregator that isn't read is dropped. */
+	private static final long AGGREGATOR_TIMEOUT = 10 * 60 * 1000;
+
+	static final byte EMPTY = 0;
+	static final byte DOUBLE = 1;
+	static final byte FLOAT = 2;
+	static final byte LONG = 3;
+	static final byte INTEGER = 4;
+	static final byte OBJECT = 5;
+
+	private byte mType = EMPTY;
+	private long[] mTimestamps = new long[INITIAL_CAPACITY];
+	private double[] mDoubles;
+	private long[] mLongs;
+	private Object[] mObjects;
+	/** The position of the oldest value. */
+	private int mTail;
+	private int mSize;
+	/** The segment that mirrors this history, if it is shared. */
+	private SharedValues mShared;
+	/** The reductions that are kept up to date with the history. */
+	private final List<WindowAggregator> mAggregators = new ArrayList<WindowAggregator>();
+
+	/**
+	 * Adds a value as the newest value of the history.
+	 *
+	 * @param timestamp
+	 *            the time of the value
+	 * @param value
+	 *            the value
+	 */
+	public synchronized void add(final long timestamp, final Object value) {
+		byte type = typeOf(value);
+		if (mType != type && (mType != OBJECT || mSize == 0)) {
+			convert(type);
+		}
+		if (mSize == mTimestamps.length) {
+			resize(mTimestamps.length * 2);
+		}
+		int head = (mTail + mSize) % mTimestamps.length;
+		mTimestamps[head] = timestamp;
+		switch (mType) {
+		case DOUBLE:
+		case FLOAT:
+			mDoubles[head] = ((Number) value).doubleValue();
+			break;
+		case LONG:
+		case INTEGER:
+			mLongs[head] = ((Number) value).longValue();
+			break;
+		default:
+			mObjects[head] = value;
+		}
+		mSize++;
+		if (mShared != null) {
+			share(head);
+		}
+		if (!mAggregators.isEmpty()) {
+			aggregate(timestamp, value);
+		}
+	}
+
+	/**
+	 * Removes the oldest values until at most the given number of values is
+	 * left.
+	 *
+	 * @param size
+	 *            the number of values to keep
+	 */
+	public synchronized void trimToSize(final int size) {
+		if (mSize <= size) {
+			return;
+		}
+		while (mSize > Math.max(0, size)) {
+			removeOldest();
+		}
+		shrink();
+		if (mShared != null) {
+			mShared.retain(mSize);
+		}
+		retainAggregated();
+	}
+
+	/**
+	 * Removes the values older than the given time. The newest value is
+	 * always kept, it is the current value of the path.
+	 *
+	 * @param expire
+	 *            the time of the oldest value to keep
+	 */
+	public synchronized void trimOlderThan(final long expire) {
+		if (mSize <= 1 || mTimestamps[mTail] >= expire) {
+			return;
+		}
+		while (mSize > 1 && mTimestamps[mTail] < expire) {
+			removeOldest();
+		}
+		shrink();
+		if (mShared != null) {
+			mShared.retain(mSize);
+		}
+		retainAggregated();
+	}
+
+	/**
+	 * Reduces the values newer than now - timespan. The reduction is kept up
+	 * to date as values are added and removed, so that asking for it again is
+	 * cheap.
+	 *
+	 * @param mode
+	 *            one of MIN, MAX, MEAN or MEDIAN
+	 * @param now
+	 *            the current time
+	 * @param timespan
+	 *            the time span in ms
+	 * @return an empty list if there are no values, otherwise the reduced
+	 *         value followed by a value holding the number of values, with
+	 *         the timestamp of the oldest value
+	 */
+	public synchronized List<TimestampedValue> reduce(
+			final HistoryReductionMode mode, final long now,
+			final long timespan) {
+		WindowAggregator aggregator = null;
+		for (int i = 0; i < mAggregators.size(); i++) {
+			WindowAggregator candidate = mAggregators.get(i);
+			if (candidate.getMode() == mode
+					&& candidate.getTimespan() == timespan) {
+				aggregator = candidate;
+				break;
+			}
+		}
+		if (aggregator == null) {
+			aggregator = new WindowAggregator(mode, timespan);
+			List<TimestampedValue> values = read(false, now - timespan);
+			for (int i = values.size() - 1; i >= 0; i--) {
+				aggregator.add(values.get(i).getTimestamp(), values.get(i)
+						.getValue());
+			}
+			mAggregators.add(aggregator);
+		}
+		aggregator.expire(now - timespan);
+		List<TimestampedValue> result = new ArrayList<TimestampedValue>(2);
+		TimestampedValue reduced = aggregator.getResult(now);
+		if (reduced != null) {
+			result.add(reduced);
+			result.add(new TimestampedValue(aggregator.size(), aggregator
+					.getOldestTimestamp()));
+		}
+		return result;
+	}
+
+	private void aggregate(final long timestamp, final Object value) {
+		for (int i = mAggregators.size() - 1; i >= 0; i--) {
+			WindowAggregator aggregator = mAggregators.get(i);
+			if (timestamp - aggregator.getLastUsed() > AGGREGATOR_TIMEOUT) {
+				// nobody asks for this reduction anymore
+				mAggregators.remove(i);
+			} else {
+				try {
+					aggregator.add(timestamp, value);
+				} catch (ClassCastException e) {
+					// a value of another type can't be compared with the
+					// values in the window, the reduction is rebuilt from the
+					// history when it is asked for again
+					mAggregators.remove(i);
+				}
+			}
+		}
+	}
+
+	/** Removes the values that left the history from the aggregators. */
+	private void retainAggregated() {
+		for (WindowAggregator aggregator : mAggregators) {
+			while (aggregator.size() > mSize) {
+				aggregator.removeOldest();
+			}
+		}
+	}
+
+	/**
+	 * Mirrors this history into a shared segment, starting with the values it
+	 * already holds. Only numeric histories can be shared.
+	 *
+	 * @param shared
+	 *            the segment, or null to stop sharing
+	 * @return false if the history holds values that can't be shared
+	 */
+	public synchronized boolean share(final SharedValues shared) {
+		if (shared == null) {
+			mShared = null;
+			return true;
+		}
+		if (mType == OBJECT) {
+			return false;
+		}
+		mShared = shared;
+		for (int i = 0; i < mSize; i++) {
+			share((mTail + i) % mTimestamps.length);
+		}
+		return true;
+	}
+
+	private void share(final int index) {
+		if (mType == OBJECT) {
+			mShared.invalidate();
+			mShared = null;
+		} else if (mType == DOUBLE || mType == FLOAT) {
+			mShared.append(mTimestamps[index], mType,
+					Double.doubleToRawLongBits(mDoubles[index]));
+		} else {
+			mShared.append(mTimestamps[index], mType, mLongs[index]);
+		}
+	}
+
+	/**
+	 * Boxes a value of a shared segment with the type it was added with.
+	 */
+	static Object box(final int type, final long bits) {
+		switch (type) {
+		case DOUBLE:
+			return Double.longBitsToDouble(bits);
+		case FLOAT:
+			return (float) Double.longBitsToDouble(bits);
+		case INTEGER:
+			return (int) bits;
+		default:
+			return bits;
+		}
+	}
+
+	/**
+	 * @return the number of values in the history
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Gets the values newer than now - timespan, newest first, or only the
+	 * newest value if the timespan is 0. The start of the window is found
+	 * with a binary search, so only the values in the window are read.
+	 *
+	 * @param now
+	 *            the current time
+	 * @param timespan
+	 *            the time span in ms
+	 * @return the values
+	 */
+	public synchronized List<TimestampedValue> getValues(final long now,
+			final long timespan) {
+		return read(timespan == 0, now - timespan);
+	}
+
+	/**
+	 * Gets the values newer than the given time, newest first.
+	 *
+	 * @param since
+	 *            the time after which values are returned
+	 * @return the values
+	 */
+	public synchronized List<TimestampedValue> getValuesSince(final long since) {
+		return read(false, since);
+	}
+
+	/**
+	 * Copies the values in the window, called with the lock held.
+	 */
+	private List<TimestampedValue> read(final boolean newestOnly,
+			final long since) {
+		int capacity = mTimestamps.length;
+		int count = newestOnly ? Math.min(mSize, 1) : count(mTimestamps,
+				mTail, mSize, since);
+		List<TimestampedValue> result = new ArrayList<TimestampedValue>(count);
+		for (int i = mSize - 1; i >= mSize - count; i--) {
+			int index = (mTail + i) % capacity;
+			Object value;
+			switch (mType) {
+			case DOUBLE:
+				value = mDoubles[index];
+				break;
+			case FLOAT:
+				value = (float) mDoubles[index];
+				break;
+			case LONG:
+				value = mLongs[index];
+				break;
+			case INTEGER:
+				value = (int) mLongs[index];
+				break;
+			default:
+				value = mObjects[index];
+			}
+			result.add(new TimestampedValue(value, mTimestamps[index]));
+		}
+		return result;
+	}
+
+	/**
+	 * Counts the values newer than since with a binary search, values are
+	 * stored oldest first from the tail.
+	 */
+	private static int count(final long[] timestamps, final int tail,
+			final int size, final long since) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[(tail + middle) % timestamps.length] > since) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return size - low;
+	}
+
+	private void removeOldest() {
+		if (mObjects != null) {
+			// don't keep the value reachable
+			mObjects[mTail] = null;
+		}
+		mTail = (mTail + 1) % mTimestamps.length;
+		mSize--;
+	}
+
+	private static byte typeOf(final Object value) {
+		if (value instanceof Double) {
+			return DOUBLE;
+		} else if (value instanceof Float) {
+			return FLOAT;
+		} else if (value instanceof Long) {
+			return LONG;
+		} else if (value instanceof Integer) {
+			return INTEGER;
+		}
+		return OBJECT;
+	}
+
+	/**
+	 * Switches to the column for the given type. A history holds a single
+	 * type, so values of another type make it fall back to objects.
+	 */
+	private void convert(final byte type) {
+		int capacity = mTimestamps.length;
+		if (mType == EMPTY || mSize == 0) {
+			mType = type;
+		} else if (mType != OBJECT) {
+			Object[] objects = new Object[capacity];
+			for (int i = 0; i < mSize; i++) {
+				int index = (mTail + i) % capacity;
+				switch (mType) {
+				case DOUBLE:
+					objects[index] = mDoubles[index];
+					break;
+				case FLOAT:
+					objects[index] = (float) mDoubles[index];
+					break;
+				case LONG:
+					objects[index] = mLongs[index];
+					break;
+				case INTEGER:
+					objects[index] = (int) mLongs[index];
+					break;
+				}
+			}
+			mObjects = objects;
+			mType = OBJECT;
+			// the aggregators hold values of the old type
+			mAggregators.clear();
+		}
+		mDoubles = null;
+		mLongs = null;
+		switch (mType) {
+		case DOUBLE:
+		case FLOAT:
+			mDoubles = new double[capacity];
+			mObjects = null;
+			break;
+		case LONG:
+		case INTEGER:
+			mLongs = new long[capacity];
+			mObjects = null;
+			break;
+		default:
+			if (mObjects == null) {
+				mObjects = new Object[capacity];
+			}
+		}
+	}
+
+	/**
+	 * Halves the capacity while less than a quarter of it is used, so that
+	 * the memory of a long window is released after it is trimmed.
+	 */
+	private void shrink() {
+		int capacity = mTimestamps.length;
+		while (capacity > INITIAL_CAPACITY && mSize < capacity / 4) {
+			capacity /= 2;
+		}
+		if (capacity != mTimestamps.length) {
+			resize(capacity);
+		}
+	}
+
+	/** Changes the capacity, moving the oldest value to the start. */
+	private void resize(final int resized) {
+		int capacity = mTimestamps.length;
+		mTimestamps = unwrap(mTimestamps, new long[resized]);
+		if (mDoubles != null) {
+			double[] doubles = new double[resized];
+			for (int i = 0; i < mSize; i++) {
+				doubles[i] = mDoubles[(mTail + i) % capacity];
+			}
+			mDoubles = doubles;
+		}
+		if (mLongs != null) {
+			mLongs = unwrap(mLongs, new long[resized]);
+		}
+		if (mObjects != null) {
+			Object[] objects = new Object[resized];
+			for (int i = 0; i < mSize; i++) {
+				objects[i] = mObjects[(mTail + i) % capacity];
+			}
+			mObjects = objects;
+		}
+		mTail = 0;
+	}
+
+	private long[] unwrap(final long[] from, final long[] to) {
+		for (int i = 0; i < mSize; i++) {
+			to[i] = from[(mTail + i) % from.length];
+		}
+		return to;
+	}
+
+}
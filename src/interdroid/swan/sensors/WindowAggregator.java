@@ -0,0 +1,405 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.TimestampedValue;
+
+/**
+ * Maintains the reduction of a sliding window of values incrementally, as
+ * values enter and leave the window, instead of reducing the whole window at
+ * every evaluation:
+ * <ul>
+ * <li>MIN and MAX keep a monotonic deque of candidates, amortized O(1),</li>
+ * <li>MEAN keeps a running sum, O(1),</li>
+ * <li>MEDIAN keeps the lower and upper half of the window in two indexed
+ * heaps, O(log n).</li>
+ * </ul>
+ * The results are the same as those of
+ * {@link TimestampedValue#applyMode(java.util.List, HistoryReductionMode)}
+ * on the window ordered newest first.
+ *
+ * The window, the candidates and the heaps are arrays of slots of the window
+ * that are reused, so adding and removing values doesn't allocate, except
+ * when the window grows beyond its capacity.
+ *
+ * Instances are not thread safe, they are used with the lock of the
+ * {@link ValueHistory} they belong to.
+ */
+public class WindowAggregator {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final HistoryReductionMode mMode;
+	private final long mTimespan;
+	private long mLastUsed;
+
+	/** The values in the window, a circular buffer from the oldest value. */
+	private long[] mTimestamps = new long[INITIAL_CAPACITY];
+	private Object[] mValues = new Object[INITIAL_CAPACITY];
+	private int mTail;
+	private int mSize;
+
+	/**
+	 * MIN and MAX: the slots of the candidates, a circular buffer from the
+	 * oldest candidate, which is the result.
+	 */
+	private int[] mCandidates;
+	private int mCandidatesTail;
+	private int mCandidatesSize;
+
+	/** MEAN: the sum of the values. */
+	private double mSum;
+
+	/** MEDIAN: the slots of the smaller half of the values, largest on top. */
+	private int[] mLower;
+	private int mLowerSize;
+	/** MEDIAN: the slots of the larger half of the values, smallest on top. */
+	private int[] mUpper;
+	private int mUpperSize;
+	/**
+	 * MEDIAN: the position of each slot in its heap, the index in the upper
+	 * heap, or -1 - the index in the lower heap.
+	 */
+	private int[] mPositions;
+
+	/**
+	 * @param mode
+	 *            the reduction mode, one of MIN, MAX, MEAN or MEDIAN
+	 * @param timespan
+	 *            the length of the window in ms
+	 */
+	public WindowAggregator(HistoryReductionMode mode, long timespan) {
+		mMode = mode;
+		mTimespan = timespan;
+		switch (mode) {
+		case MIN:
+		case MAX:
+			mCandidates = new int[INITIAL_CAPACITY];
+			break;
+		case MEDIAN:
+			mLower = new int[INITIAL_CAPACITY];
+			mUpper = new int[INITIAL_CAPACITY];
+			mPositions = new int[INITIAL_CAPACITY];
+			break;
+		default:
+			break;
+		}
+	}
+
+	public HistoryReductionMode getMode() {
+		return mMode;
+	}
+
+	public long getTimespan() {
+		return mTimespan;
+	}
+
+	/**
+	 * @return the time the result was last asked for
+	 */
+	public long getLastUsed() {
+		return mLastUsed;
+	}
+
+	/**
+	 * @return the number of values in the window
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the timestamp of the oldest value in the window
+	 */
+	public long getOldestTimestamp() {
+		return mSize == 0 ? 0 : mTimestamps[mTail];
+	}
+
+	/**
+	 * Adds a value as the newest value of the window.
+	 *
+	 * @param timestamp
+	 *            the time of the value
+	 * @param value
+	 *            the value
+	 */
+	public void add(long timestamp, Object value) {
+		if (mSize == mTimestamps.length) {
+			grow();
+		}
+		int slot = (mTail + mSize) % mTimestamps.length;
+		mTimestamps[slot] = timestamp;
+		mValues[slot] = value;
+		mSize++;
+		switch (mMode) {
+		case MAX:
+			// a newer value at least as large hides the older ones
+			while (mCandidatesSize > 0
+					&& compare(newestCandidate(), slot) <= 0) {
+				mCandidatesSize--;
+			}
+			addCandidate(slot);
+			break;
+		case MIN:
+			while (mCandidatesSize > 0
+					&& compare(newestCandidate(), slot) >= 0) {
+				mCandidatesSize--;
+			}
+			addCandidate(slot);
+			break;
+		case MEAN:
+			mSum += ((Number) value).doubleValue();
+			break;
+		case MEDIAN:
+			if (mUpperSize == 0 || compare(slot, mUpper[0]) >= 0) {
+				mUpper[mUpperSize] = slot;
+				mPositions[slot] = mUpperSize;
+				siftUp(false, mUpperSize++);
+			} else {
+				mLower[mLowerSize] = slot;
+				mPositions[slot] = -1 - mLowerSize;
+				siftUp(true, mLowerSize++);
+			}
+			balance();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Removes the oldest value of the window.
+	 */
+	public void removeOldest() {
+		if (mSize == 0) {
+			return;
+		}
+		int slot = mTail;
+		Object value = mValues[slot];
+		switch (mMode) {
+		case MAX:
+		case MIN:
+			// the oldest value can only be the first candidate
+			if (mCandidatesSize > 0 && mCandidates[mCandidatesTail] == slot) {
+				mCandidatesTail = (mCandidatesTail + 1) % mCandidates.length;
+				mCandidatesSize--;
+			}
+			break;
+		case MEAN:
+			if (mSize == 1) {
+				// don't let rounding errors accumulate
+				mSum = 0;
+			} else {
+				mSum -= ((Number) value).doubleValue();
+			}
+			break;
+		case MEDIAN:
+			int position = mPositions[slot];
+			if (position >= 0) {
+				removeFromHeap(false, position);
+			} else {
+				removeFromHeap(true, -1 - position);
+			}
+			balance();
+			break;
+		default:
+			break;
+		}
+		// don't keep the value reachable
+		mValues[slot] = null;
+		mTail = (mTail + 1) % mTimestamps.length;
+		mSize--;
+	}
+
+	/**
+	 * Removes the values that are not newer than the given time.
+	 */
+	public void expire(long since) {
+		while (mSize > 0 && mTimestamps[mTail] <= since) {
+			removeOldest();
+		}
+	}
+
+	/**
+	 * @param now
+	 *            the time at which the result is asked for
+	 * @return the reduced value of the window, or null if the window is empty
+	 */
+	public TimestampedValue getResult(long now) {
+		mLastUsed = now;
+		if (mSize == 0) {
+			return null;
+		}
+		// like applyMode on newest first values, mean and median get the
+		// timestamp of the first, the newest, value
+		long newest = mTimestamps[(mTail + mSize - 1) % mTimestamps.length];
+		switch (mMode) {
+		case MAX:
+		case MIN:
+			int slot = mCandidates[mCandidatesTail];
+			return new TimestampedValue(mValues[slot], mTimestamps[slot]);
+		case MEAN:
+			return new TimestampedValue(mSum / mSize, newest);
+		case MEDIAN:
+			return new TimestampedValue(mValues[mUpper[0]], newest);
+		default:
+			return null;
+		}
+	}
+
+	private int newestCandidate() {
+		return mCandidates[(mCandidatesTail + mCandidatesSize - 1)
+				% mCandidates.length];
+	}
+
+	private void addCandidate(int slot) {
+		mCandidates[(mCandidatesTail + mCandidatesSize) % mCandidates.length] = slot;
+		mCandidatesSize++;
+	}
+
+	/**
+	 * Moves values between the heaps until the lower heap holds exactly the
+	 * smaller half, the median is then on top of the upper heap.
+	 */
+	private void balance() {
+		int half = (mLowerSize + mUpperSize) / 2;
+		while (mLowerSize > half) {
+			int slot = mLower[0];
+			removeFromHeap(true, 0);
+			mUpper[mUpperSize] = slot;
+			mPositions[slot] = mUpperSize;
+			siftUp(false, mUpperSize++);
+		}
+		while (mLowerSize < half) {
+			int slot = mUpper[0];
+			removeFromHeap(false, 0);
+			mLower[mLowerSize] = slot;
+			mPositions[slot] = -1 - mLowerSize;
+			siftUp(true, mLowerSize++);
+		}
+	}
+
+	/**
+	 * Removes the slot at a position of a heap by moving the last slot of the
+	 * heap in its place.
+	 */
+	private void removeFromHeap(boolean lower, int position) {
+		int[] heap = lower ? mLower : mUpper;
+		int last = lower ? --mLowerSize : --mUpperSize;
+		if (position == last) {
+			return;
+		}
+		place(lower, heap[last], position);
+		siftDown(lower, position);
+		siftUp(lower, position);
+	}
+
+	private void siftUp(boolean lower, int position) {
+		int[] heap = lower ? mLower : mUpper;
+		int slot = heap[position];
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (!above(lower, slot, heap[parent])) {
+				break;
+			}
+			place(lower, heap[parent], position);
+			position = parent;
+		}
+		place(lower, slot, position);
+	}
+
+	private void siftDown(boolean lower, int position) {
+		int[] heap = lower ? mLower : mUpper;
+		int size = lower ? mLowerSize : mUpperSize;
+		int slot = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && above(lower, heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!above(lower, heap[child], slot)) {
+				break;
+			}
+			place(lower, heap[child], position);
+			position = child;
+		}
+		place(lower, slot, position);
+	}
+
+	/**
+	 * @return whether slot a belongs above slot b in the heap
+	 */
+	private boolean above(boolean lower, int a, int b) {
+		int comparison = compare(a, b);
+		return lower ? comparison > 0 : comparison < 0;
+	}
+
+	private void place(boolean lower, int slot, int position) {
+		if (lower) {
+			mLower[position] = slot;
+			mPositions[slot] = -1 - position;
+		} else {
+			mUpper[position] = slot;
+			mPositions[slot] = position;
+		}
+	}
+
+	/**
+	 * Doubles the capacity, moving the oldest value to the first slot and
+	 * renumbering the slots in the candidates and heaps.
+	 */
+	private void grow() {
+		int capacity = mTimestamps.length;
+		int grown = capacity * 2;
+		long[] timestamps = new long[grown];
+		Object[] values = new Object[grown];
+		for (int i = 0; i < mSize; i++) {
+			timestamps[i] = mTimestamps[(mTail + i) % capacity];
+			values[i] = mValues[(mTail + i) % capacity];
+		}
+		if (mCandidates != null) {
+			int[] candidates = new int[grown];
+			for (int i = 0; i < mCandidatesSize; i++) {
+				candidates[i] = renumber(mCandidates[(mCandidatesTail + i)
+						% capacity], capacity);
+			}
+			mCandidates = candidates;
+			mCandidatesTail = 0;
+		}
+		if (mPositions != null) {
+			int[] lower = new int[grown];
+			int[] upper = new int[grown];
+			int[] positions = new int[grown];
+			for (int i = 0; i < mLowerSize; i++) {
+				lower[i] = renumber(mLower[i], capacity);
+				positions[lower[i]] = -1 - i;
+			}
+			for (int i = 0; i < mUpperSize; i++) {
+				upper[i] = renumber(mUpper[i], capacity);
+				positions[upper[i]] = i;
+			}
+			mLower = lower;
+			mUpper = upper;
+			mPositions = positions;
+		}
+		mTimestamps = timestamps;
+		mValues = values;
+		mTail = 0;
+	}
+
+	private int renumber(int slot, int capacity) {
+		return (slot - mTail + capacity) % capacity;
+	}
+
+	private int compare(int a, int b) {
+		return compare(mValues[a], mValues[b]);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static int compare(Object a, Object b) {
+		return ((Comparable) a).compareTo(b);
+	}
+
+}
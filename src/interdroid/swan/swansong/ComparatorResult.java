@@ -17,6 +17,21 @@ public class ComparatorResult extends Result {
 		this.mRight = right;
 	}
 
+	/**
+	 * Resets this result to UNDEFINED for a new comparison, so that the same
+	 * instance can be used for every evaluation of a comparison.
+	 * 
+	 * @param timestamp
+	 *            the time of the new comparison
+	 */
+	public void reset(long timestamp) {
+		mValues = null;
+		mTimestamp = timestamp;
+		mTriState = TriState.UNDEFINED;
+		mDeferUntil = Long.MAX_VALUE;
+		mDeferGuaranteed = true;
+	}
+
 	public void startOuterLoop() {
 		// left == ANY -> start with FALSE, stop with positive counter example
 		// left == ALL -> start with TRUE, stop with negative counter example
@@ -1,6 +1,7 @@
 package interdroid.swan.swansong;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -85,6 +86,41 @@ public class TimestampedValue implements Serializable, Parcelable,
 		return "" + mValue + " (timestamp: " + mTimestamp + ")";
 	}
 
+	/**
+	 * Copies the values newer than the given time. The values have to be
+	 * sorted by time, either newest first or oldest first, the boundary of
+	 * the window is found with a binary search and the order is kept.
+	 * 
+	 * @param values
+	 *            the values, sorted by time
+	 * @param since
+	 *            the time after which values are in the window
+	 * @return a new list with the values newer than since
+	 */
+	public static List<TimestampedValue> newerThan(
+			final List<TimestampedValue> values, final long since) {
+		int size = values.size();
+		boolean newestFirst = size < 2
+				|| values.get(0).getTimestamp() >= values.get(size - 1)
+						.getTimestamp();
+		// find the first position that is on the other side of the boundary
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			boolean newer = values.get(middle).getTimestamp() > since;
+			if (newer == newestFirst) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		if (newestFirst) {
+			return new ArrayList<TimestampedValue>(values.subList(0, low));
+		}
+		return new ArrayList<TimestampedValue>(values.subList(low, size));
+	}
+
 	/**
 	 * Applies the reduction mode to the values.
 	 * 
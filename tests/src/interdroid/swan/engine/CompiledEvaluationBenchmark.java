@@ -0,0 +1,201 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.BinaryLogicOperator;
+import interdroid.swan.swansong.Comparator;
+import interdroid.swan.swansong.ComparatorResult;
+import interdroid.swan.swansong.ComparisonExpression;
+import interdroid.swan.swansong.ConstantValueExpression;
+import interdroid.swan.swansong.Expression;
+import interdroid.swan.swansong.LogicExpression;
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.TriState;
+import interdroid.swan.swansong.TriStateExpression;
+import interdroid.swan.swansong.ValueExpression;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the evaluation of a {@link CompiledExpression} with the recursive
+ * evaluation it replaced, which built the id of every child with string
+ * concatenation, kept results in a map by id, dispatched on the type of
+ * every node with instanceof and allocated a result for every node. Both
+ * recompute every node of the same expression at every evaluation.
+ *
+ * It logs the time and the number of allocated objects per evaluation.
+ */
+public class CompiledEvaluationBenchmark extends AndroidTestCase {
+
+	private static final String TAG = "CompiledEvaluationBenchmark";
+
+	private static final String ID = "benchmark";
+
+	/** The depth of the tree of logic nodes. */
+	private static final int DEPTH = 4;
+
+	private static final int WARM_UP = 1000;
+
+	private static final int EVALUATIONS = 10000;
+
+	public void testEvaluate() throws Exception {
+		Expression expression = tree(DEPTH);
+		EvaluationManager manager = new EvaluationManager(getContext(),
+				100000, false);
+		CompiledExpression compiled = CompiledExpression.compile(ID,
+				expression);
+		RecursiveEvaluator recursive = new RecursiveEvaluator();
+
+		// both agree
+		assertEquals(TriState.TRUE, manager.evaluate(compiled, 0)
+				.getTriState());
+		assertEquals(TriState.TRUE, recursive.evaluate(ID, expression, 0)
+				.getTriState());
+
+		for (int i = 0; i < WARM_UP; i++) {
+			evaluateCompiled(manager, compiled, i);
+			recursive.evaluateAll(ID, expression, i);
+		}
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			long start = System.nanoTime();
+			for (int i = 0; i < EVALUATIONS; i++) {
+				evaluateCompiled(manager, compiled, i);
+			}
+			long compiledTime = System.nanoTime() - start;
+			int compiledAllocations = Debug.getThreadAllocCount();
+
+			Debug.resetThreadAllocCount();
+			start = System.nanoTime();
+			for (int i = 0; i < EVALUATIONS; i++) {
+				recursive.evaluateAll(ID, expression, i);
+			}
+			long recursiveTime = System.nanoTime() - start;
+			int recursiveAllocations = Debug.getThreadAllocCount();
+
+			Log.d(TAG, compiled.size() + " nodes: compiled "
+					+ report(compiledTime, compiledAllocations)
+					+ ", recursive "
+					+ report(recursiveTime, recursiveAllocations));
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	private static void evaluateCompiled(EvaluationManager manager,
+			CompiledExpression compiled, long now) throws Exception {
+		for (int node = 0; node < compiled.size(); node++) {
+			compiled.markDirty(node);
+		}
+		manager.evaluate(compiled, now);
+	}
+
+	private static String report(long nanos, int allocations) {
+		return (nanos / EVALUATIONS) + " ns and "
+				+ ((double) allocations / EVALUATIONS)
+				+ " allocations per evaluation";
+	}
+
+	/**
+	 * @return a balanced tree of AND nodes over comparisons of constants that
+	 *         are all true, so that nothing is short circuited
+	 */
+	private static TriStateExpression tree(int depth) {
+		if (depth == 0) {
+			return new ComparisonExpression(Expression.LOCATION_SELF,
+					new ConstantValueExpression(5.0), Comparator.GREATER_THAN,
+					new ConstantValueExpression(3.0));
+		}
+		return new LogicExpression(Expression.LOCATION_SELF, tree(depth - 1),
+				BinaryLogicOperator.AND, tree(depth - 1));
+	}
+
+	/**
+	 * The recursive evaluation of logic, comparison and constant nodes as it
+	 * was before expressions were compiled. How long a comparison remains
+	 * valid isn't computed, so its cost is a lower bound.
+	 */
+	private static class RecursiveEvaluator {
+
+		private final Map<String, Result> mCachedResults = new HashMap<String, Result>();
+
+		/** Evaluates with all results expired. */
+		Result evaluateAll(String id, Expression expression, long now) {
+			mCachedResults.clear();
+			return evaluate(id, expression, now);
+		}
+
+		Result evaluate(String id, Expression expression, long now) {
+			Result cached = mCachedResults.get(id);
+			if (cached != null && cached.getDeferUntil() > now) {
+				return cached;
+			}
+			Result result = null;
+			if (expression instanceof LogicExpression) {
+				result = applyLogic(id, (LogicExpression) expression, now);
+			} else if (expression instanceof ComparisonExpression) {
+				result = doCompare(id, (ComparisonExpression) expression, now);
+			} else if (expression instanceof ConstantValueExpression) {
+				result = ((ConstantValueExpression) expression).getResult();
+			}
+			if (result != null) {
+				mCachedResults.put(id, result);
+			}
+			return result;
+		}
+
+		private Result applyLogic(String id, LogicExpression expression,
+				long now) {
+			Result first = evaluate(id + Expression.LEFT_SUFFIX,
+					expression.getLeft(), now);
+			if (first.getTriState() == TriState.FALSE
+					&& expression.getOperator() == BinaryLogicOperator.AND) {
+				return first;
+			}
+			Result last = evaluate(id + Expression.RIGHT_SUFFIX,
+					expression.getRight(), now);
+			Result result = new Result(now, expression.getOperator().operate(
+					first.getTriState(), last.getTriState()));
+			result.setDeferUntil(Math.min(first.getDeferUntil(),
+					last.getDeferUntil()));
+			return result;
+		}
+
+		private Result doCompare(String id, ComparisonExpression expression,
+				long now) {
+			Result right = evaluate(id + Expression.RIGHT_SUFFIX,
+					expression.getRight(), now);
+			Result left = evaluate(id + Expression.LEFT_SUFFIX,
+					expression.getLeft(), now);
+			ComparatorResult comparatorResult = new ComparatorResult(now,
+					((ValueExpression) expression.getLeft())
+							.getHistoryReductionMode(),
+					((ValueExpression) expression.getRight())
+							.getHistoryReductionMode());
+			comparatorResult.startOuterLoop();
+			for (int l = 0; l < left.getValues().length; l++) {
+				comparatorResult.startInnerLoop();
+				for (int r = 0; r < right.getValues().length; r++) {
+					if (comparatorResult.innerResult(EvaluationManager
+							.comparePair(expression.getComparator(), left
+									.getValues()[l].getValue(), right
+									.getValues()[r].getValue()))) {
+						break;
+					}
+				}
+				if (comparatorResult.outerResult()) {
+					break;
+				}
+			}
+			comparatorResult.setDeferUntil(Long.MAX_VALUE);
+			return comparatorResult;
+		}
+
+	}
+
+}
@@ -0,0 +1,112 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.BinaryLogicOperator;
+import interdroid.swan.swansong.Comparator;
+import interdroid.swan.swansong.ComparisonExpression;
+import interdroid.swan.swansong.ConstantValueExpression;
+import interdroid.swan.swansong.Expression;
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.LogicExpression;
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.SensorValueExpression;
+import interdroid.swan.swansong.TriState;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+/**
+ * Evaluates a compiled expression over and over with all of its nodes
+ * recomputed, and checks that in steady state the nodes reuse their result
+ * slots and that evaluation allocates close to nothing.
+ */
+public class EvaluationAllocationTest extends AndroidTestCase {
+
+	private static final String ID = "allocation";
+
+	private static final int WARM_UP = 100;
+
+	private static final int EVALUATIONS = 1000;
+
+	private EvaluationManager mManager;
+	private CompiledExpression mCompiled;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// remote@stub:value{ANY,0} > 50.0 && (5.0 > 3.0 && 2.0 < 7.0)
+		ComparisonExpression remote = new ComparisonExpression("remote",
+				new SensorValueExpression("remote", "stub", "value", null,
+						HistoryReductionMode.ANY, 0), Comparator.GREATER_THAN,
+				new ConstantValueExpression(50.0));
+		LogicExpression local = new LogicExpression(Expression.LOCATION_SELF,
+				new ComparisonExpression(Expression.LOCATION_SELF,
+						new ConstantValueExpression(5.0),
+						Comparator.GREATER_THAN, new ConstantValueExpression(
+								3.0)), BinaryLogicOperator.AND,
+				new ComparisonExpression(Expression.LOCATION_SELF,
+						new ConstantValueExpression(2.0), Comparator.LESS_THAN,
+						new ConstantValueExpression(7.0)));
+		Expression root = new LogicExpression(Expression.LOCATION_SELF, remote,
+				BinaryLogicOperator.AND, local);
+
+		mManager = new EvaluationManager(getContext(), 100000, false);
+		mCompiled = CompiledExpression.compile(ID, root);
+		mManager.addNodes(mCompiled);
+		Result result = new Result(0, TriState.TRUE);
+		result.setDeferUntilGuaranteed(false);
+		mManager.newRemoteResult(ID + Expression.LEFT_SUFFIX, result);
+	}
+
+	public void testResultsAreReused() throws Exception {
+		long now = 1;
+		for (int i = 0; i < WARM_UP; i++) {
+			evaluate(now++);
+		}
+		Result root = evaluate(now++);
+		assertEquals(TriState.TRUE, root.getTriState());
+		assertSame(mCompiled.mSlots[0], root);
+		for (int i = 0; i < EVALUATIONS; i++) {
+			assertSame(root, evaluate(now++));
+			for (int node = 0; node < mCompiled.size(); node++) {
+				if (mCompiled.mSlots[node] != null
+						&& mCompiled.mKinds[node] != CompiledExpression.REMOTE) {
+					// every computed node wrote its result into its slot
+					assertSame(mCompiled.mSlots[node],
+							mCompiled.mResults.get(node));
+				}
+			}
+		}
+	}
+
+	public void testSteadyStateAllocations() throws Exception {
+		long now = 1;
+		for (int i = 0; i < WARM_UP; i++) {
+			evaluate(now++);
+		}
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			for (int i = 0; i < EVALUATIONS; i++) {
+				evaluate(now++);
+			}
+			int allocations = Debug.getThreadAllocCount();
+			assertTrue("allocated " + allocations + " objects in "
+					+ EVALUATIONS + " evaluations",
+					allocations < EVALUATIONS / 10);
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	/**
+	 * Marks every node dirty, so that all of them are computed again, and
+	 * evaluates.
+	 */
+	private Result evaluate(long now) throws Exception {
+		for (int node = 0; node < mCompiled.size(); node++) {
+			mCompiled.markDirty(node);
+		}
+		return mManager.evaluate(mCompiled, now);
+	}
+
+}
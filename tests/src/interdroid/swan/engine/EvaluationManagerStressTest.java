@@ -0,0 +1,154 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.swansong.BinaryLogicOperator;
+import interdroid.swan.swansong.Comparator;
+import interdroid.swan.swansong.ComparisonExpression;
+import interdroid.swan.swansong.ConstantValueExpression;
+import interdroid.swan.swansong.Expression;
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.LogicExpression;
+import interdroid.swan.swansong.Result;
+import interdroid.swan.swansong.SensorValueExpression;
+import interdroid.swan.swansong.TriState;
+
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Delivers remote results and sensor notifications from their own threads
+ * while the test thread evaluates, like the main thread and an evaluation
+ * shard do in the engine, and checks that every evaluation completes and
+ * that the last evaluation sees the last data.
+ */
+public class EvaluationManagerStressTest extends AndroidTestCase {
+
+	private static final String ID = "stress";
+
+	private static final int UPDATES = 20000;
+
+	private EvaluationManager mManager;
+	private CompiledExpression mCompiled;
+	private SensorBinding mBinding;
+	private StubSensor mSensor;
+	private String mRemoteId;
+	private String mSensorId;
+
+	/** The notified ids, drained by the evaluating thread. */
+	private final Queue<String> mNotified = new ConcurrentLinkedQueue<String>();
+
+	private volatile Throwable mFailure;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// self@stub:value{MAX,1000} > 50.0 || remote@stub:value{ANY,0} > 50.0
+		SensorValueExpression sensor = new SensorValueExpression(
+				Expression.LOCATION_SELF, "stub", "value", null,
+				HistoryReductionMode.MAX, 1000);
+		ComparisonExpression local = new ComparisonExpression(
+				Expression.LOCATION_SELF, sensor, Comparator.GREATER_THAN,
+				new ConstantValueExpression(50.0));
+		ComparisonExpression remote = new ComparisonExpression("remote",
+				new SensorValueExpression("remote", "stub", "value", null,
+						HistoryReductionMode.ANY, 0), Comparator.GREATER_THAN,
+				new ConstantValueExpression(50.0));
+		Expression root = new LogicExpression(Expression.LOCATION_SELF, local,
+				BinaryLogicOperator.OR, remote);
+
+		mManager = new EvaluationManager(getContext(), 100000, false);
+		// compiled without initialize, which would bind the sensor and push
+		// the remote part
+		mCompiled = CompiledExpression.compile(ID, root);
+		mManager.addNodes(mCompiled);
+		mRemoteId = ID + Expression.RIGHT_SUFFIX;
+		mSensorId = ID + Expression.LEFT_SUFFIX + Expression.LEFT_SUFFIX;
+
+		mSensor = new StubSensor();
+		mBinding = new SensorBinding(sensor, new ResultCache(100000));
+		mBinding.addLeaf(mSensorId);
+		mBinding.setSensor(mSensor);
+		mCompiled.mBindings.set(mCompiled.indexOf(mSensorId), mBinding);
+	}
+
+	public void testConcurrentUpdates() throws Throwable {
+		Thread remote = new Thread("remote") {
+			public void run() {
+				try {
+					Random random = new Random(1);
+					for (int i = 0; i < UPDATES; i++) {
+						remoteResult(random.nextBoolean() ? TriState.TRUE
+								: TriState.FALSE);
+					}
+				} catch (Throwable t) {
+					mFailure = t;
+				}
+			}
+		};
+		Thread sensor = new Thread("sensor") {
+			public void run() {
+				try {
+					Random random = new Random(2);
+					for (int i = 0; i < UPDATES; i++) {
+						sensorValue((double) random.nextInt(50));
+					}
+				} catch (Throwable t) {
+					mFailure = t;
+				}
+			}
+		};
+		remote.start();
+		sensor.start();
+		int evaluations = 0;
+		while (remote.isAlive() || sensor.isAlive()) {
+			Result result = evaluate();
+			assertNotNull(result);
+			assertNotNull(result.getTriState());
+			evaluations++;
+		}
+		remote.join();
+		sensor.join();
+		if (mFailure != null) {
+			throw mFailure;
+		}
+		assertTrue(evaluations > 0);
+
+		// the sensor values were never above 50, only the remote part counts
+		remoteResult(TriState.FALSE);
+		assertEquals(TriState.FALSE, evaluate().getTriState());
+		remoteResult(TriState.TRUE);
+		assertEquals(TriState.TRUE, evaluate().getTriState());
+		remoteResult(TriState.FALSE);
+		sensorValue(100.0);
+		assertEquals(TriState.TRUE, evaluate().getTriState());
+	}
+
+	/** Delivers a remote result like the engine service does. */
+	private void remoteResult(TriState triState) {
+		Result result = new Result(System.currentTimeMillis(), triState);
+		// a guaranteed result would let the sensor node sleep, which unbinds
+		// it from the stub sensor
+		result.setDeferUntilGuaranteed(false);
+		mManager.newRemoteResult(mRemoteId, result);
+		mNotified.add(mRemoteId);
+	}
+
+	/** Adds a sensor value and notifies it like the engine service does. */
+	private void sensorValue(double value) {
+		mSensor.add(System.currentTimeMillis(), value);
+		mBinding.markDirty();
+		mNotified.addAll(mBinding.getLeafIds());
+	}
+
+	/** Evaluates like an evaluation shard does. */
+	private Result evaluate() throws Exception {
+		String id;
+		while ((id = mNotified.poll()) != null) {
+			mManager.clearCacheFor(id);
+		}
+		return mManager.evaluate(mCompiled, System.currentTimeMillis());
+	}
+
+}
@@ -0,0 +1,76 @@
+package interdroid.swan.engine;
+
+import interdroid.swan.sensors.Sensor;
+import interdroid.swan.sensors.ValueHistory;
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.List;
+
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * A sensor that lives in the process of the test and serves the values added
+ * to it, to evaluate sensor nodes without binding to a sensor service.
+ */
+public class StubSensor extends Sensor.Stub {
+
+	private final ValueHistory mHistory = new ValueHistory();
+
+	/**
+	 * Adds a value, the binding of the sensor still has to be marked dirty.
+	 */
+	public void add(long timestamp, Object value) {
+		mHistory.add(timestamp, value);
+	}
+
+	@Override
+	public void register(String id, String valuePath, Bundle configuration) {
+	}
+
+	@Override
+	public void unregister(String id) {
+	}
+
+	@Override
+	public List<TimestampedValue> getValues(String id, long now, long timespan) {
+		return mHistory.getValues(now, timespan);
+	}
+
+	@Override
+	public long getStartUpTime(String id) {
+		return 0;
+	}
+
+	@Override
+	public Bundle getInfo() {
+		return new Bundle();
+	}
+
+	@Override
+	public int getInterfaceVersion() {
+		return 0;
+	}
+
+	@Override
+	public ParcelFileDescriptor getSharedValues(String id) {
+		return null;
+	}
+
+	@Override
+	public List<TimestampedValue> getValuesSince(String id, long since,
+			long now, long timespan) {
+		return mHistory.getValuesSince(Math.max(since, now - timespan));
+	}
+
+	@Override
+	public List<TimestampedValue> getReducedValues(String id, String mode,
+			long now, long timespan) {
+		return null;
+	}
+
+	@Override
+	public void setHistoryLength(String id, long historyLength) {
+	}
+
+}
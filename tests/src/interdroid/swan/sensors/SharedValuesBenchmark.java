@@ -0,0 +1,120 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.io.File;
+import java.util.List;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares reading windows from a {@link SharedValues} segment with the
+ * parcel path of Sensor.getValues, which copies the window out of the
+ * history, writes it into a parcel with a type tag per value and creates it
+ * again on the engine side. The parcel path is measured without the Binder
+ * transaction itself, so its numbers are a lower bound.
+ *
+ * The history holds as many values as a path of MovementSensor. For every
+ * window it logs the time per read (the latency an evaluation sees), the
+ * values read per ms (the throughput) and the size of the parcel.
+ */
+public class SharedValuesBenchmark extends TestCase {
+
+	private static final String TAG = "SharedValuesBenchmark";
+
+	private static final int HISTORY_SIZE = 80 * 160;
+
+	private static final int[] WINDOWS = { 0, 100, 1000, HISTORY_SIZE };
+
+	private static final int READS = 200;
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("benchmark", ".values");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	public void testReadWindows() throws Exception {
+		SharedValues shared = SharedValues.create(mFile,
+				SharedValues.DEFAULT_CAPACITY);
+		ValueHistory history = new ValueHistory();
+		history.share(shared);
+		for (int i = 1; i <= HISTORY_SIZE; i++) {
+			history.add(i, Math.sin(i));
+		}
+		long now = HISTORY_SIZE;
+
+		for (int window : WINDOWS) {
+			// both paths read the same values
+			List<TimestampedValue> expected = history.getValues(now, window);
+			List<TimestampedValue> actual = shared.read(now, window);
+			assertEquals(expected.size(), actual.size());
+			assertEquals(expected.get(expected.size() - 1).getTimestamp(),
+					actual.get(actual.size() - 1).getTimestamp());
+
+			// warm up both paths before timing them
+			readShared(shared, now, window);
+			readParcel(history, now, window);
+
+			long start = System.nanoTime();
+			int values = readShared(shared, now, window);
+			long sharedTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int bytes = readParcel(history, now, window);
+			long parcelTime = System.nanoTime() - start;
+
+			Log.d(TAG, "window " + window + " (" + expected.size()
+					+ " values): shared " + report(sharedTime, values)
+					+ ", parcel " + report(parcelTime, values) + ", "
+					+ bytes + " bytes per parcel");
+		}
+	}
+
+	/**
+	 * @return the number of values read
+	 */
+	private static int readShared(SharedValues shared, long now, long window) {
+		int values = 0;
+		for (int i = 0; i < READS; i++) {
+			values += shared.read(now, window).size();
+		}
+		return values;
+	}
+
+	/**
+	 * Reads the window like a sensor and the engine do through Binder.
+	 *
+	 * @return the size of a parcel in bytes
+	 */
+	private static int readParcel(ValueHistory history, long now, long window) {
+		int bytes = 0;
+		for (int i = 0; i < READS; i++) {
+			Parcel parcel = Parcel.obtain();
+			try {
+				parcel.writeTypedList(history.getValues(now, window));
+				bytes = parcel.dataSize();
+				parcel.setDataPosition(0);
+				parcel.createTypedArrayList(TimestampedValue.CREATOR);
+			} finally {
+				parcel.recycle();
+			}
+		}
+		return bytes;
+	}
+
+	private static String report(long nanos, int values) {
+		return (nanos / READS / 1000) + " us per read, "
+				+ (values * 1000000L / Math.max(nanos, 1)) + " values per ms";
+	}
+
+}
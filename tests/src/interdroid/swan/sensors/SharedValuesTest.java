@@ -0,0 +1,94 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Reads a shared segment while a writer appends to and trims the history it
+ * mirrors, and checks that every read is a consistent window.
+ */
+public class SharedValuesTest extends TestCase {
+
+	private static final int CAPACITY = 256;
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mFile = File.createTempFile("shared", ".values");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+	}
+
+	public void testRead() throws Exception {
+		SharedValues shared = SharedValues.create(mFile, CAPACITY);
+		ValueHistory history = new ValueHistory();
+		assertTrue(history.share(shared));
+		for (long t = 1; t <= 10; t++) {
+			history.add(t, (double) t);
+		}
+		List<TimestampedValue> values = shared.read(10, 5);
+		assertEquals(5, values.size());
+		assertEquals(10.0, values.get(0).getValue());
+		assertEquals(6, values.get(4).getTimestamp());
+		values = shared.read(10, 0);
+		assertEquals(1, values.size());
+		assertEquals(10, values.get(0).getTimestamp());
+	}
+
+	public void testOverwrittenWindow() throws Exception {
+		SharedValues shared = SharedValues.create(mFile, CAPACITY);
+		ValueHistory history = new ValueHistory();
+		history.share(shared);
+		for (long t = 1; t <= 2 * CAPACITY; t++) {
+			history.add(t, t);
+		}
+		// the oldest values were overwritten, the caller falls back
+		assertNull(shared.read(2 * CAPACITY, 2 * CAPACITY));
+		assertEquals(CAPACITY - 1, shared.read(2 * CAPACITY, CAPACITY - 1)
+				.size());
+	}
+
+	public void testConcurrentReads() throws Exception {
+		final SharedValues shared = SharedValues.create(mFile, CAPACITY);
+		final ValueHistory history = new ValueHistory();
+		history.share(shared);
+		Thread writer = new Thread() {
+			public void run() {
+				for (long t = 1; t <= 200000; t++) {
+					history.add(t, (double) t);
+					if (t % 7 == 0) {
+						history.trimToSize(CAPACITY / 2);
+					}
+				}
+			}
+		};
+		writer.start();
+		int reads = 0;
+		while (writer.isAlive()) {
+			List<TimestampedValue> values = shared.read(Long.MAX_VALUE / 2,
+					Long.MAX_VALUE / 2);
+			if (values == null) {
+				continue;
+			}
+			reads++;
+			long previous = Long.MAX_VALUE;
+			for (TimestampedValue value : values) {
+				// every value is written with its timestamp
+				assertEquals((double) value.getTimestamp(), value.getValue());
+				assertTrue(value.getTimestamp() < previous);
+				previous = value.getTimestamp();
+			}
+		}
+		writer.join();
+		assertTrue(reads > 0);
+	}
+
+}
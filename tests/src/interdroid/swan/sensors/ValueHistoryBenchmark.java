@@ -0,0 +1,111 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link ValueHistory} with the synchronized list that memory
+ * sensors used to keep their histories in, at the history size of
+ * MovementSensor. The list inserted every value at index 0 and trimmed the
+ * last one, and read windows with a copy under the lock of the list.
+ *
+ * It logs the time per add and trim of a value in a full history, and the
+ * time per read of a one second window and of the whole history.
+ */
+public class ValueHistoryBenchmark extends TestCase {
+
+	private static final String TAG = "ValueHistoryBenchmark";
+
+	private static final int HISTORY_SIZE = 80 * 160;
+
+	/** The time in ms between values, about the rate of the accelerometer. */
+	private static final long INTERVAL = 6;
+
+	private static final long[] WINDOWS = { 1000, HISTORY_SIZE * INTERVAL };
+
+	private static final int ADDS = 20000;
+
+	private static final int READS = 200;
+
+	public void testAddTrimRead() {
+		ValueHistory history = new ValueHistory();
+		List<TimestampedValue> list = Collections
+				.synchronizedList(new ArrayList<TimestampedValue>());
+		long now = 0;
+		// fill both histories, which also warms up both paths
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			now += INTERVAL;
+			addToHistory(history, now);
+			addToList(list, now);
+		}
+
+		long start = System.nanoTime();
+		long historyNow = now;
+		for (int i = 0; i < ADDS; i++) {
+			historyNow += INTERVAL;
+			addToHistory(history, historyNow);
+		}
+		long historyTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long listNow = now;
+		for (int i = 0; i < ADDS; i++) {
+			listNow += INTERVAL;
+			addToList(list, listNow);
+		}
+		long listTime = System.nanoTime() - start;
+		now = historyNow;
+
+		Log.d(TAG, "add and trim: history " + historyTime / ADDS
+				+ " ns per value, list " + listTime / ADDS + " ns per value");
+
+		for (long window : WINDOWS) {
+			// both read the same window
+			assertEquals(list(list, now, window).size(),
+					history.getValues(now, window).size());
+
+			start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				history.getValues(now, window);
+			}
+			historyTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < READS; i++) {
+				list(list, now, window);
+			}
+			listTime = System.nanoTime() - start;
+
+			Log.d(TAG, "read " + window + " ms: history " + historyTime
+					/ READS / 1000 + " us per read, list " + listTime / READS
+					/ 1000 + " us per read");
+		}
+	}
+
+	private static void addToHistory(ValueHistory history, long now) {
+		history.add(now, Math.sin(now));
+		history.trimToSize(HISTORY_SIZE);
+	}
+
+	private static void addToList(List<TimestampedValue> list, long now) {
+		list.add(0, new TimestampedValue(Math.sin(now), now));
+		if (list.size() > HISTORY_SIZE) {
+			list.remove(list.size() - 1);
+		}
+	}
+
+	private static List<TimestampedValue> list(List<TimestampedValue> list,
+			long now, long timespan) {
+		synchronized (list) {
+			return TimestampedValue.newerThan(list, now - timespan);
+		}
+	}
+
+}
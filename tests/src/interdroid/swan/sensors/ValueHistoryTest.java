@@ -0,0 +1,73 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the circular buffer of {@link ValueHistory} and the aggregators it
+ * keeps up to date.
+ */
+public class ValueHistoryTest extends TestCase {
+
+	public void testTrimShrinks() {
+		ValueHistory history = new ValueHistory();
+		for (long t = 1; t <= 1000; t++) {
+			history.add(t, (double) t);
+		}
+		history.trimToSize(10);
+		checkValues(history, 991, 1000);
+		// wrap around the shrunk buffer and shrink again while wrapped
+		for (long t = 1001; t <= 1100; t++) {
+			history.add(t, (double) t);
+			history.trimOlderThan(t - 40);
+		}
+		checkValues(history, 1060, 1100);
+		history.trimToSize(3);
+		checkValues(history, 1098, 1100);
+	}
+
+	public void testTypeChangeDropsAggregators() {
+		ValueHistory history = new ValueHistory();
+		for (int i = 1; i <= 10; i++) {
+			history.add(i, i);
+		}
+		List<TimestampedValue> reduced = history.reduce(
+				HistoryReductionMode.MAX, 10, 100);
+		assertEquals(10, reduced.get(0).getValue());
+		// the history falls back to objects, the aggregator is dropped
+		history.add(11, "a");
+		assertEquals(11, history.size());
+	}
+
+	public void testIncomparableValueDropsAggregator() {
+		ValueHistory history = new ValueHistory();
+		history.add(1, "a");
+		history.add(2, "b");
+		List<TimestampedValue> reduced = history.reduce(
+				HistoryReductionMode.MAX, 2, 100);
+		assertEquals("b", reduced.get(0).getValue());
+		// a String can't be compared with an Integer
+		history.add(3, 3);
+		assertEquals(3, history.size());
+		assertEquals(3, history.getValues(3, 0).get(0).getValue());
+	}
+
+	/**
+	 * Checks that the history holds exactly the values from oldest to newest,
+	 * each value being its timestamp.
+	 */
+	private static void checkValues(ValueHistory history, long oldest,
+			long newest) {
+		List<TimestampedValue> values = history.getValues(newest, newest);
+		assertEquals(newest - oldest + 1, values.size());
+		for (int i = 0; i < values.size(); i++) {
+			assertEquals(newest - i, values.get(i).getTimestamp());
+			assertEquals((double) (newest - i), values.get(i).getValue());
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package interdroid.swan.sensors;
+
+import interdroid.swan.swansong.HistoryReductionMode;
+import interdroid.swan.swansong.TimestampedValue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the incremental reductions of {@link WindowAggregator} against
+ * {@link TimestampedValue#applyMode(List, HistoryReductionMode)} on the same
+ * window.
+ */
+public class WindowAggregatorTest extends TestCase {
+
+	private static final long TIMESPAN = 50;
+
+	public void testMin() {
+		check(HistoryReductionMode.MIN);
+	}
+
+	public void testMax() {
+		check(HistoryReductionMode.MAX);
+	}
+
+	public void testMean() {
+		check(HistoryReductionMode.MEAN);
+	}
+
+	public void testMedian() {
+		check(HistoryReductionMode.MEDIAN);
+	}
+
+	public void testEmpty() {
+		WindowAggregator aggregator = new WindowAggregator(
+				HistoryReductionMode.MEDIAN, TIMESPAN);
+		assertNull(aggregator.getResult(0));
+		aggregator.add(10, 1.0);
+		aggregator.expire(10);
+		assertEquals(0, aggregator.size());
+		assertNull(aggregator.getResult(10));
+	}
+
+	/**
+	 * Adds values with repeating values and timestamps, so that there are
+	 * ties, lets them expire and grows the window past its initial capacity,
+	 * and compares the result after every step.
+	 */
+	private void check(HistoryReductionMode mode) {
+		Random random = new Random(42);
+		WindowAggregator aggregator = new WindowAggregator(mode, TIMESPAN);
+		// the window, oldest first
+		LinkedList<TimestampedValue> window = new LinkedList<TimestampedValue>();
+		long now = 0;
+		for (int i = 0; i < 5000; i++) {
+			// bursts make the window grow beyond 16 values
+			now += i % 500 < 100 ? random.nextInt(2) : random.nextInt(8);
+			double value = random.nextInt(20);
+			aggregator.add(now, value);
+			window.addLast(new TimestampedValue(value, now));
+			if (random.nextInt(10) == 0) {
+				aggregator.removeOldest();
+				window.removeFirst();
+			}
+			aggregator.expire(now - TIMESPAN);
+			while (!window.isEmpty()
+					&& window.getFirst().getTimestamp() <= now - TIMESPAN) {
+				window.removeFirst();
+			}
+
+			TimestampedValue result = aggregator.getResult(now);
+			assertEquals(window.size(), aggregator.size());
+			if (window.isEmpty()) {
+				assertNull(result);
+				continue;
+			}
+			assertEquals(window.getFirst().getTimestamp(),
+					aggregator.getOldestTimestamp());
+			TimestampedValue expected = TimestampedValue.applyMode(
+					newestFirst(window), mode)[0];
+			String message = mode + " after " + i + " values";
+			assertEquals(message, expected.getTimestamp(),
+					result.getTimestamp());
+			assertEquals(message, (Double) expected.getValue(),
+					(Double) result.getValue(), 1e-9);
+		}
+	}
+
+	/**
+	 * @return copies of the values, newest first, since applyMode sorts and
+	 *         changes them
+	 */
+	private static List<TimestampedValue> newestFirst(
+			List<TimestampedValue> window) {
+		List<TimestampedValue> values = new ArrayList<TimestampedValue>(
+				window.size());
+		for (int i = window.size() - 1; i >= 0; i--) {
+			TimestampedValue value = window.get(i);
+			values.add(new TimestampedValue(value.getValue(), value
+					.getTimestamp()));
+		}
+		return values;
+	}
+
+}